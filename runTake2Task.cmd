@@ -1 +1 @@
-java -enableassertions -classpath bin;lib\gson-1.6.jar -Djava.util.logging.config.file=lib\logging.properties take2task.Processor %1 %2 %3
+java -enableassertions -classpath bin;lib\gson-1.6.jar -Djava.util.logging.config.file=lib\logging.properties take2task.Processor %1 %2 %3
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import take2task.domain.EvaluationContext;
+import take2task.domain.Task;
+
+/**
+ * Remembers which of an account's tasks Task.modify() has already left alone today,
+ * so that they aren't inspected again while they stay the same.
+ *
+ * Each task is remembered by a fingerprint of everything that modify() looks at: the task's
+ * fields, the account's contexts and folders, today's date and the version of the rules.
+ * If a task arrives with the same fingerprint again, modify() would leave it alone again,
+ * so it is skipped. Tasks that modify() changes aren't remembered, because the changed task
+ * needs inspecting again to be sure that modify() is finished with it.
+ *
+ * One cache is kept for each account. Tasks of one cycle are modified on several threads at once.
+ */
+class ModifyCache
+{
+    // Fingerprint of each task that modify() left alone, by task id.
+    private final ConcurrentMap<Long, Long> fingerprints = new ConcurrentHashMap<Long, Long>();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private volatile int today;
+
+    /**
+     * Get ready for a new processing cycle.
+     * On a new day, forget all the tasks, because their fingerprints include the old day.
+     *
+     * @param evaluation  The cycle's evaluation context.
+     */
+    void startCycle(EvaluationContext evaluation)
+    {
+        if (evaluation.getDay() != today)
+        {
+            fingerprints.clear();
+            today = evaluation.getDay();
+        }
+        skippedCount.set(0);
+    }
+
+    /**
+     * Inspect the given task and modify it as needed, unless modify() has already
+     * left it alone today, as it is now.
+     *
+     * @param evaluation  The cycle's evaluation context.
+     *
+     * @return true if the task was modified, else false.
+     */
+    boolean modify(Task task, EvaluationContext evaluation)
+    {
+        long fingerprint = task.getModifyFingerprint(evaluation);
+        Long previous = fingerprints.get(task.getId());
+        if (previous != null && previous.longValue() == fingerprint)
+        {
+            skippedCount.incrementAndGet();
+            return false;
+        }
+
+        if (task.modify(evaluation))
+        {
+            fingerprints.remove(task.getId());
+            return true;
+        }
+        fingerprints.put(task.getId(), fingerprint);
+        return false;
+    }
+
+    /**
+     * Return the number of tasks skipped this cycle, because modify() had already left them alone.
+     */
+    int getSkippedCount()
+    {
+        return skippedCount.get();
+    }
+}
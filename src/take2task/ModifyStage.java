@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import take2task.domain.EvaluationContext;
+import take2task.domain.Task;
+
+/**
+ * The stage of a processing cycle that inspects tasks and modifies those that need it.
+ *
+ * Tasks are modified in chunks. With a parallelism of more than one, several chunks are
+ * modified at the same time on background threads; with a parallelism of one, each chunk
+ * is modified on the calling thread (handy for debugging). Either way, modified tasks are
+ * handed on to the update pipeline, and returned, in the same order as they were added.
+ * Tasks that haven't changed since Task.modify() last left them alone are skipped.
+ *
+ * Task.modify() only changes the task it is called on. The contexts and folders it reads
+ * are shared between tasks, as is the evaluation context, but neither ContextSet nor
+ * EvaluationContext is changed after it is built, so they are safe to read from many threads at once.
+ */
+class ModifyStage
+{
+    /**
+     * Number of tasks in each chunk handed to a background thread. Big enough that
+     * the cost of handing over a chunk is small next to the cost of modifying it.
+     */
+    private static final int CHUNK_SIZE = 64;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final UpdatePipeline updates;
+    private final ModifyCache cache;
+    private final EvaluationContext evaluation;
+
+    private List<Task> chunk = new ArrayList<Task>(CHUNK_SIZE);
+    private final LinkedList<Future<List<Task>>> runningChunks = new LinkedList<Future<List<Task>>>();
+    private final List<Task> modifiedTasks = new ArrayList<Task>();
+    private int taskCount;
+
+    /**
+     * Constructor.
+     *
+     * @param executor  Used to modify chunks in the background, if parallelism is more than one.
+     * @param parallelism  Maximum number of chunks to modify at the same time.
+     *                     One to modify every task on the calling thread.
+     * @param updates  The pipeline that writes modified tasks back to the task service.
+     * @param cache  Remembers the tasks that have already been inspected and left alone.
+     * @param evaluation  The cycle's evaluation context, which all the tasks are modified with.
+     */
+    ModifyStage(ExecutorService executor, int parallelism, UpdatePipeline updates, 
+                ModifyCache cache, EvaluationContext evaluation)
+    {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.updates = updates;
+        this.cache = cache;
+        this.evaluation = evaluation;
+    }
+
+    /**
+     * Add a task to be inspected, and modified if it needs it.
+     */
+    synchronized void add(Task task) throws InterruptedException, ExecutionException
+    {
+        taskCount++;
+        chunk.add(task);
+        if (chunk.size() >= CHUNK_SIZE)
+        {
+            startChunk();
+        }
+    }
+
+    /**
+     * Return how many tasks have been added to this stage.
+     */
+    synchronized int getTaskCount()
+    {
+        return taskCount;
+    }
+
+    /**
+     * Modify any tasks still waiting, then wait for all chunks to finish.
+     *
+     * @return The modified tasks, in the order they were added.
+     */
+    synchronized Task[] finish() throws InterruptedException, ExecutionException
+    {
+        if (!chunk.isEmpty())
+        {
+            startChunk();
+        }
+        while (!runningChunks.isEmpty())
+        {
+            forward(runningChunks.removeFirst().get());
+        }
+        return modifiedTasks.toArray(new Task[modifiedTasks.size()]);
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Start modifying the current chunk of tasks.
+     */
+    private void startChunk() throws InterruptedException, ExecutionException
+    {
+        final List<Task> tasks = chunk;
+        chunk = new ArrayList<Task>(CHUNK_SIZE);
+
+        if (parallelism == 1)
+        {
+            forward(modify(tasks));
+            return;
+        }
+
+        // Don't run more chunks at once than we have been allowed. Wait for the oldest.
+        if (runningChunks.size() >= parallelism)
+        {
+            forward(runningChunks.removeFirst().get());
+        }
+
+        runningChunks.addLast(executor.submit(new Callable<List<Task>>()
+        {
+            public List<Task> call()
+            {
+                return modify(tasks);
+            }
+        }));
+
+        // Pass on the results of any chunks at the front of the queue that have already finished.
+        while (!runningChunks.isEmpty() && runningChunks.getFirst().isDone())
+        {
+            forward(runningChunks.removeFirst().get());
+        }
+    }
+
+    /**
+     * Modify the given tasks as needed.
+     *
+     * @return The modified tasks, in the same order.
+     */
+    private List<Task> modify(List<Task> tasks)
+    {
+        List<Task> modified = new ArrayList<Task>();
+        for (Task task : tasks)
+        {
+            if (cache.modify(task, evaluation))
+            {
+                modified.add(task);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Pass on modified tasks to the update pipeline.
+     */
+    private void forward(List<Task> modified)
+    {
+        for (Task task : modified)
+        {
+            modifiedTasks.add(task);
+            updates.add(task);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import take2task.service.TaskService;
+import take2task.service.toodledo.ToodledoService;
+
+/**
+ * Processes many accounts in the one process.
+ * Each account has its own Processor (and so its own user state), but they all share
+ * the one task service. The processing cycles for the accounts run concurrently
+ * on a bounded pool of threads.
+ */
+public class MultiProcessor
+{
+    private static Logger logger = Logger.getLogger("take2task");
+
+    /**
+     * Default maximum number of accounts processed at the same time.
+     * A cycle spends nearly all its time waiting on the task service,
+     * so this can be well above the number of processors.
+     */
+    public static final int DEFAULT_THREAD_COUNT = 16;
+
+    /**
+     * Default fraction of the interval by which each account's start times are moved.
+     */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    private List<Processor> processors = new ArrayList<Processor>();
+    private int threadCount;
+
+    // ---------- Public methods ----------
+
+    /**
+     * Constructor.
+     *
+     * @param roster  The accounts to process.
+     * @param threadCount  Maximum number of accounts to process at the same time.
+     */
+    public MultiProcessor(Roster roster, int threadCount)
+    {
+        TaskService service = new ToodledoService(); // Shared by all the accounts.
+        for (Roster.Account account : roster.getAccounts())
+        {
+            processors.add(new Processor(service, account.getUserId(), account.getPassword()));
+        }
+
+        this.threadCount = Math.max(1, Math.min(threadCount, processors.size()));
+    }
+
+    /**
+     * Do one processing cycle for every account, running the accounts concurrently.
+     * Return when the cycles for all accounts have finished.
+     */
+    public void runOnce()
+    {
+        List<Callable<Object>> cycles = new ArrayList<Callable<Object>>(processors.size());
+        for (final Processor processor : processors)
+        {
+            cycles.add(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    // Processor.runOnce() logs and swallows its own errors,
+                    // so one failing account never holds up the others.
+                    processor.runOnce();
+                    return null;
+                }
+            });
+        }
+
+        long startMillis = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new AccountThreadFactory());
+        try
+        {
+            executor.invokeAll(cycles);
+        }
+        catch (InterruptedException e)
+        {
+            logger.log(Level.WARNING, "Interrupted while waiting for account cycles to finish.", e);
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        logger.info(String.format("Processed %d accounts in %d ms.",
+                                  processors.size(), System.currentTimeMillis() - startMillis));
+    }
+
+    /**
+     * Do processing cycles for all accounts at the specified interval until the program
+     * is stopped. Each account is scheduled on its own, with a little jitter, so that the
+     * accounts don't all hit the task service at the same moment.
+     *
+     * @param intervalMinutes  Interval between each processing cycle.
+     */
+    public void run(final int intervalMinutes)
+    {
+        final long intervalMillis = intervalMinutes * 60 * 1000;
+
+        Scheduler scheduler = new Scheduler(threadCount, Scheduler.Mode.FIXED_RATE, DEFAULT_JITTER);
+        scheduler.addShutdownHook(Processor.SHUTDOWN_TIMEOUT_MILLIS);
+        for (Processor processor : processors)
+        {
+            scheduler.add(processor, intervalMillis);
+        }
+        scheduler.awaitTermination();
+    }
+
+    /**
+     * Do processing cycles for all accounts until the program is stopped. Each account
+     * polls at an interval that adapts to how active its user is, so idle accounts
+     * cost very few requests.
+     */
+    public void runAdaptive()
+    {
+        Scheduler scheduler = new Scheduler(threadCount, Scheduler.Mode.FIXED_DELAY, DEFAULT_JITTER);
+        scheduler.addShutdownHook(Processor.SHUTDOWN_TIMEOUT_MILLIS);
+        for (Processor processor : processors)
+        {
+            processor.setPollingInterval(new PollingInterval());
+            scheduler.add(processor, PollingInterval.DEFAULT_MINIMUM_MILLIS);
+        }
+        scheduler.awaitTermination();
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args  Command line arguments.
+     *              args[0] = roster file, listing the accounts to process
+     *              args[1] = run interval in minutes, "once" or "adaptive"
+     *              args[2] = maximum number of accounts to process at the same time
+     */
+    public static void main(String[] args) throws IOException
+    {
+        final int DEFAULT_INTERVAL_MINUTES = 5;
+
+        if (args.length < 1 || args.length > 3)
+        {
+            System.out.printf("Usage: %s %s", MultiProcessor.class.getName(),
+                              "<roster file> [\"once\" | \"adaptive\" | <interval in minutes>] [<thread count>]");
+            return;
+        }
+        Roster roster = Roster.load(new File(args[0]));
+        final int threadCount = (args.length == 3) ? Integer.parseInt(args[2]) : DEFAULT_THREAD_COUNT;
+        MultiProcessor multiProcessor = new MultiProcessor(roster, threadCount);
+        logger.info(String.format("Loaded %d accounts from %s.", roster.getAccounts().size(), args[0]));
+
+        if (args.length >= 2 && args[1].equals("once"))
+        {
+            multiProcessor.runOnce();
+        }
+        else if (args.length >= 2 && args[1].equals("adaptive"))
+        {
+            multiProcessor.runAdaptive();
+        }
+        else
+        {
+            final int intervalMinutes = (args.length >= 2) ? Integer.parseInt(args[1]) : DEFAULT_INTERVAL_MINUTES;
+            multiProcessor.run(intervalMinutes);
+        }
+    }
+
+    // ---------- Private helper classes ----------
+
+    /**
+     * Names the threads in the pool, so that log output can be traced back to them.
+     */
+    private static class AccountThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            return new Thread(runnable, "take2task-account-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import take2task.domain.Timestamp;
+
+/**
+ * An interval between processing cycles that adapts to how active the user is.
+ *
+ * While the user is editing tasks, we poll quickly, so that tasks entered using the
+ * Take2Task syntax get fixed within seconds. Once nothing has changed for a while,
+ * the interval doubles each cycle, up to a ceiling, so idle accounts cost very few requests.
+ */
+public class PollingInterval
+{
+    /**
+     * Default interval while the user is active.
+     */
+    public static final long DEFAULT_MINIMUM_MILLIS = 30 * 1000;
+
+    /**
+     * Default ceiling on the interval while the user is idle.
+     */
+    public static final long DEFAULT_MAXIMUM_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * If the user has edited a task within this long, they count as active.
+     */
+    private static final long ACTIVE_WINDOW_SECONDS = 5 * 60;
+
+    private final long minimumMillis;
+    private final long maximumMillis;
+    private long intervalMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param minimumMillis  Interval to use while the user is active.
+     * @param maximumMillis  Ceiling on the interval while the user is idle.
+     */
+    public PollingInterval(long minimumMillis, long maximumMillis)
+    {
+        this.minimumMillis = minimumMillis;
+        this.maximumMillis = Math.max(minimumMillis, maximumMillis);
+        this.intervalMillis = minimumMillis;
+    }
+
+    /**
+     * No-arg constructor. Use the default minimum and maximum intervals.
+     */
+    public PollingInterval()
+    {
+        this(DEFAULT_MINIMUM_MILLIS, DEFAULT_MAXIMUM_MILLIS);
+    }
+
+    /**
+     * Work out the interval before the next cycle, given when the user last edited a task.
+     *
+     * @param lastActivity  When a task was last edited. (This includes our own writes, 
+     *                      but we only write in response to the user's edits, or when 
+     *                      pseudo-dates move on, so that's close enough.)
+     *
+     * @return The interval before the next cycle.
+     */
+    public synchronized long update(Timestamp lastActivity)
+    {
+        long now = new Timestamp().getValue();
+        boolean isUserActive = now - lastActivity.getValue() < ACTIVE_WINDOW_SECONDS;
+
+        if (isUserActive)
+        {
+            intervalMillis = minimumMillis;
+        }
+        else
+        {
+            // Back off exponentially.
+            intervalMillis = Math.min(intervalMillis * 2, maximumMillis);
+        }
+        return intervalMillis;
+    }
+
+    /**
+     * Return the current interval before the next cycle.
+     */
+    public synchronized long getIntervalMillis()
+    {
+        return intervalMillis;
+    }
+}
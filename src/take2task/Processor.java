@@ -1,240 +1,534 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task;
-
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import take2task.domain.Task;
-import take2task.domain.User;
-import take2task.service.TaskService;
-import take2task.service.TaskServiceException;
-import take2task.service.toodledo.ToodledoService;
-
-/**
- * Main class of Take2Task.
- * Fetches tasks from Toodledo and processes them, including setting a "pseudo date"
- * for each task's due date unless told otherwise.
- */
-public class Processor
-{
-    private static Logger logger = Logger.getLogger("take2task");
-
-    private TaskService service = new ToodledoService();
-    private String userId;
-    private String password;
-    private User user;
-    private Calendar lastFullUpdateTime = new GregorianCalendar(1970, 1, 1); // well before now
-    
-    // ---------- Public methods ----------
-    
-    /**
-     * Constructor.
-     * 
-     * @param userId  Task service user id.
-     * @param password  Task service password.
-     */
-    public Processor(String userId, String password)
-    {
-        this.userId = userId;
-        this.password = password;
-    }
-    
-    /**
-     * Do one processing cycle. That is, fetch tasks from Toodledo, process them,
-     * then write back the modified tasks to Toodledo.
-     */
-    public void runOnce()
-    {
-        if (!service.ping())
-        {
-            logger.warning("Task service is unavailable.");
-        }
-        else
-        {
-            try
-            {
-                if (user == null)
-                {
-                    user = service.authenticate(userId, password);
-                }
-                
-                // Ask the task service to delete any completed tasks.
-                int deletedTaskCount = service.deleteCompletedTasks(user);
-                logger.info("Completed tasks that were deleted: " + deletedTaskCount);
-                
-                // Get the list of tasks to inspect from the task service.
-                Task[] tasks = getTasksToInspect();
-                if (tasks == null)
-                {
-                    logger.severe("Task service returned a null array of tasks.");
-                }
-                else
-                {
-                    logger.info("Tasks to inspect: " + tasks.length);
-                    logger.finer(toString(tasks));
-
-                    if (tasks.length > 0)
-                    {
-                        // Modify tasks as needed.
-                        Task[] modifiedTasks = modifyTasks(tasks);
-                        logger.info("Tasks modified: " + modifiedTasks.length);
-                        
-                        if (modifiedTasks.length > 0)
-                        {
-                            logger.info(toString(modifiedTasks));
-                        
-                            // Write any modified tasks back to the task service.
-                            int updatedTaskCount = service.updateTasks(user, modifiedTasks);
-                            logger.info("Modified tasks that were updated: " + updatedTaskCount);
-                        }
-                    }
-                }
-                
-                // The task array goes out of scope at the end of this loop, so all the elements
-                // in it should be garbage collected, but just in case, empty out the array so
-                // that there are no references to the elements (the tasks) any more.
-                for (int i = 0; i < tasks.length; i++)
-                {
-                    tasks[i] = null;
-                }
-                
-            }
-            catch (Exception e)
-            {
-                logger.log(Level.SEVERE, e.getMessage(), e);
-            }
-        }
-
-        logger.info("------------------------------------------------------------");
-    }
-    
-    /**
-     * Loop forever doing processing cycles at the specified interval.
-     * 
-     * @param long intervalMillis  Interval between each processing cycle.
-     */
-    public void run(final int intervalMinutes)
-    {
-        final long intervalMillis = intervalMinutes * 60 * 1000;
-        
-        Runnable runner = new Runnable()
-        {
-            public void run()
-            {
-                while (true) // Infinite loop.
-                {
-                    runOnce();
-                    
-                    try
-                    {
-                        Thread.sleep(intervalMillis);
-                    } 
-                    catch (InterruptedException e)
-                    {
-                        logger.log(Level.WARNING, "Sleep between runs interrupted.", e);
-                    }
-                }
-            }
-        };
-        Thread thread = new Thread(runner);
-        thread.run();
-    }
-    
-    /**
-     * Main method.
-     * 
-     * @param args  Command line arguments.
-     *              args[0] = user id
-     *              args[1] = password
-     *              args[2] = run interval in minutes
-     */
-    public static void main(String[] args)
-    {
-        final int DEFAULT_INTERVAL_MINUTES = 5;
-        
-        // Get username and password from the command line.
-        if (args.length != 2 && args.length != 3)
-        {
-            System.out.printf("Usage: %s %s", Processor.class.getName(), "<username> <password> [\"once\" | <interval in minutes>]");
-            return;
-        }
-        final String userId = args[0];
-        final String password = args[1];
-        Processor processor = new Processor(userId, password);
-        
-        if (args.length == 3 && args[2].equals("once"))
-        {
-            processor.runOnce();
-        }
-        else
-        {
-            final int intervalMinutes = (args.length == 3) ? Integer.parseInt(args[2]) : DEFAULT_INTERVAL_MINUTES;
-            processor.run(intervalMinutes);
-        }
-    }
-    
-    // ---------- Private helper methods ----------
-    
-    /**
-     * Return a string representation of the given array of tasks.
-     */
-    private String toString(Task[] tasks)
-    {
-        StringBuffer taskDump = new StringBuffer();
-        for (Task task : tasks)
-        {
-            taskDump.append(String.format("%s\n", task));
-        }
-        return taskDump.toString();
-    }
-    
-    /**
-     * Determine whether we need to do a full or an incremental update.
-     * Return the appropriate set of tasks.
-     * 
-     * @throws TaskServiceException  On any error getting the tasks from the task service.
-     */
-    private Task[] getTasksToInspect() throws TaskServiceException
-    {
-        Calendar now = new GregorianCalendar();
-        if (now.get(Calendar.YEAR) > lastFullUpdateTime.get(Calendar.YEAR) ||
-            now.get(Calendar.DAY_OF_YEAR) > lastFullUpdateTime.get(Calendar.DAY_OF_YEAR))
-        {
-            logger.info("First update of the day (or for this program run), so doing a full update...");
-            lastFullUpdateTime = now;
-            return service.getAllTasks(user);
-        }
-        else
-        {
-            return service.getModifiedTasks(user);
-        }
-    }
-    
-    /**
-     * Inspect the given tasks and modify any of them that need modifying.
-     * 
-     * @param tasks  The tasks to inspect.
-     * 
-     * @return  The modified tasks (a subset of the tasks given to inspect).
-     */
-    private Task[] modifyTasks(Task[] tasks)
-    {
-        List<Task> modifiedTasks = new ArrayList<Task>();
-        for (Task task : tasks)
-        {
-            if (task.modify())
-            {
-                modifiedTasks.add(task);
-            }
-        }
-        return modifiedTasks.toArray(new Task[modifiedTasks.size()]);
-    }
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import take2task.domain.EvaluationContext;
+import take2task.domain.Task;
+import take2task.domain.User;
+import take2task.service.TaskHandler;
+import take2task.service.TaskService;
+import take2task.service.TaskServiceException;
+import take2task.service.toodledo.ToodledoService;
+
+/**
+ * Main class of Take2Task.
+ * Fetches tasks from Toodledo and processes them, including setting a "pseudo date"
+ * for each task's due date unless told otherwise.
+ */
+public class Processor implements Scheduler.AdaptiveCycle
+{
+    private static Logger logger = Logger.getLogger("take2task");
+
+    /**
+     * How long to wait, when the program is stopped, for a cycle that is part way through
+     * writing tasks back to the task service.
+     */
+    static final long SHUTDOWN_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * Runs the stages of a cycle that happen in the background, such as deleting completed tasks
+     * and sending updates. Shared by all processors. Daemon threads, so that they never keep
+     * the program running on their own.
+     */
+    private static final ExecutorService stageExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "take2task-stage-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private TaskService service;
+    private String userId;
+    private String password;
+    private User user;
+    private Calendar lastRolloverTime = new GregorianCalendar(1970, 1, 1); // well before now
+    private final ModifyCache modifyCache = new ModifyCache();
+    private volatile boolean isStopRequested;
+    private volatile PollingInterval pollingInterval; // null if polling at a fixed interval
+    private volatile int modifyParallelism = Runtime.getRuntime().availableProcessors();
+    
+    // ---------- Public methods ----------
+    
+    /**
+     * Constructor.
+     * 
+     * @param userId  Task service user id.
+     * @param password  Task service password.
+     */
+    public Processor(String userId, String password)
+    {
+        this(new ToodledoService(), userId, password);
+    }
+    
+    /**
+     * Constructor. Use this one when processing several accounts, 
+     * so that they can all share the one task service.
+     * 
+     * @param service  The task service. Must be safe to share between accounts.
+     * @param userId  Task service user id.
+     * @param password  Task service password.
+     */
+    public Processor(TaskService service, String userId, String password)
+    {
+        this.service = service;
+        this.userId = userId;
+        this.password = password;
+    }
+    
+    /**
+     * Return the task service user id of the account that this processor looks after.
+     */
+    public String getUserId()
+    {
+        return userId;
+    }
+    
+    /**
+     * Do one processing cycle. That is, fetch tasks from Toodledo, process them,
+     * then write back the modified tasks to Toodledo.
+     */
+    public void runOnce()
+    {
+        if (isStopRequested)
+        {
+            return;
+        }
+        
+        if (!startCycle())
+        {
+            logger.warning(forAccount("Task service is unavailable."));
+        }
+        else
+        {
+            Future<Integer> deletion = null;
+            UpdatePipeline updates = null;
+            try
+            {
+                // Ask the task service to delete any completed tasks. This happens in the 
+                // background, at the same time as we fetch and modify the tasks to inspect.
+                deletion = deleteCompletedTasks();
+                
+                // Download the tasks to inspect from the task service, handing each one to the
+                // modify stage as soon as it arrives. Modified tasks are written back to the task
+                // service in batches, while later tasks are still being downloaded and modified.
+                // (If we have been asked to stop, don't start on anything new.)
+                if (!isStopRequested)
+                {
+                    // Fix today's date, and everything that depends on it, for the whole cycle.
+                    EvaluationContext evaluation = new EvaluationContext();
+                    modifyCache.startCycle(evaluation);
+                    
+                    updates = new UpdatePipeline(service, user, stageExecutor);
+                    ModifyStage modifyStage = new ModifyStage(stageExecutor, modifyParallelism, updates, 
+                                                              modifyCache, evaluation);
+                    int taskCount = getTasksToInspect(modifyStage, evaluation);
+                    logger.info(forAccount("Tasks inspected: " + taskCount));
+                    
+                    Task[] modifiedTasks = finishModifying(modifyStage);
+                    logger.fine(forAccount("Tasks unchanged since they were last inspected: " + 
+                                           modifyCache.getSkippedCount()));
+                    logger.info(forAccount("Tasks modified: " + modifiedTasks.length));
+                    
+                    if (modifiedTasks.length > 0)
+                    {
+                        logger.info(toString(modifiedTasks));
+                    }
+                    
+                    // Wait for the modified tasks to be written back.
+                    int updatedTaskCount = updates.finish();
+                    if (updates.getTaskCount() > 0)
+                    {
+                        logger.info(forAccount("Modified tasks that were updated: " + updatedTaskCount));
+                    }
+                }
+                
+                int deletedTaskCount = getResult(deletion);
+                logger.info(forAccount("Completed tasks that were deleted: " + deletedTaskCount));
+            }
+            catch (Exception e)
+            {
+                logger.log(Level.SEVERE, forAccount(e.getMessage()), e);
+            }
+            finally
+            {
+                // If the cycle failed part way through, don't leave updates or deletions
+                // running on their own once the cycle has ended.
+                if (updates != null)
+                {
+                    updates.abandon();
+                }
+                awaitQuietly(deletion);
+                service.endCycle(user);
+            }
+        }
+
+        // Work out how long to wait before the next cycle, based on how active the user is.
+        if (pollingInterval != null && user != null)
+        {
+            long intervalMillis = pollingInterval.update(service.getLastActivityTimestamp(user));
+            logger.fine(forAccount(String.format("Next cycle in %d seconds.", intervalMillis / 1000)));
+        }
+
+        logger.info("------------------------------------------------------------");
+    }
+    
+    /**
+     * Ask the processor to stop. A cycle that is already writing tasks back 
+     * to the task service finishes doing so, but no new work is started.
+     */
+    public void requestStop()
+    {
+        isStopRequested = true;
+    }
+    
+    /**
+     * Poll at an interval that adapts to how active the user is, rather than at a fixed interval.
+     * 
+     * @param pollingInterval  The adaptive interval, or null to go back to a fixed interval.
+     */
+    public void setPollingInterval(PollingInterval pollingInterval)
+    {
+        this.pollingInterval = pollingInterval;
+    }
+    
+    /**
+     * Set how many chunks of tasks may be modified at the same time.
+     * The default is the number of available processors.
+     * 
+     * @param modifyParallelism  Maximum number of chunks to modify at the same time.
+     *                           One to modify tasks serially, on the cycle's own thread.
+     */
+    public void setModifyParallelism(int modifyParallelism)
+    {
+        this.modifyParallelism = modifyParallelism;
+    }
+    
+    /**
+     * Return the interval before the next cycle, if polling at an adaptive interval.
+     * Return zero if polling at a fixed interval.
+     */
+    public long getNextIntervalMillis()
+    {
+        return (pollingInterval == null) ? 0 : pollingInterval.getIntervalMillis();
+    }
+    
+    /**
+     * Do processing cycles at the specified interval until the program is stopped.
+     * Cycles start at a fixed rate, so they don't drift by however long each cycle takes.
+     * 
+     * @param intervalMinutes  Interval between each processing cycle.
+     */
+    public void run(final int intervalMinutes)
+    {
+        final long intervalMillis = intervalMinutes * 60 * 1000;
+        
+        Scheduler scheduler = new Scheduler(1, Scheduler.Mode.FIXED_RATE, 0);
+        scheduler.addShutdownHook(SHUTDOWN_TIMEOUT_MILLIS);
+        scheduler.add(this, intervalMillis);
+        scheduler.awaitTermination();
+    }
+    
+    /**
+     * Do processing cycles until the program is stopped, at an interval that adapts
+     * to how active the user is.
+     */
+    public void runAdaptive()
+    {
+        setPollingInterval(new PollingInterval());
+        
+        Scheduler scheduler = new Scheduler(1, Scheduler.Mode.FIXED_DELAY, 0);
+        scheduler.addShutdownHook(SHUTDOWN_TIMEOUT_MILLIS);
+        scheduler.add(this, PollingInterval.DEFAULT_MINIMUM_MILLIS);
+        scheduler.awaitTermination();
+    }
+    
+    /**
+     * Main method.
+     * 
+     * @param args  Command line arguments.
+     *              args[0] = user id
+     *              args[1] = password
+     *              args[2] = run interval in minutes, "once" or "adaptive"
+     */
+    public static void main(String[] args)
+    {
+        final int DEFAULT_INTERVAL_MINUTES = 5;
+        
+        // Get username and password from the command line.
+        if (args.length != 2 && args.length != 3)
+        {
+            System.out.printf("Usage: %s %s", Processor.class.getName(), "<username> <password> [\"once\" | \"adaptive\" | <interval in minutes>]");
+            return;
+        }
+        final String userId = args[0];
+        final String password = args[1];
+        Processor processor = new Processor(userId, password);
+        
+        if (args.length == 3 && args[2].equals("once"))
+        {
+            processor.runOnce();
+        }
+        else if (args.length == 3 && args[2].equals("adaptive"))
+        {
+            processor.runAdaptive();
+        }
+        else
+        {
+            final int intervalMinutes = (args.length == 3) ? Integer.parseInt(args[2]) : DEFAULT_INTERVAL_MINUTES;
+            processor.run(intervalMinutes);
+        }
+    }
+    
+    // ---------- Private helper methods ----------
+    
+    /**
+     * Return the given log message, prefixed with the account it is about.
+     * Several accounts may be logging at once, so the prefix keeps them apart.
+     */
+    private String forAccount(String message)
+    {
+        return String.format("[%s] %s", userId, message);
+    }
+    
+    /**
+     * Start a processing cycle with the task service, authenticating first if we haven't yet.
+     * Starting a cycle fetches the account details that the rest of the cycle works from,
+     * so a successful start also tells us that the task service is available.
+     * 
+     * @return true if the cycle started, false if the task service is unavailable.
+     */
+    private boolean startCycle()
+    {
+        try
+        {
+            if (user == null)
+            {
+                user = service.authenticate(userId, password); // This starts a cycle too.
+            }
+            else
+            {
+                service.startCycle(user);
+            }
+            return true;
+        }
+        catch (TaskServiceException e)
+        {
+            logger.log(Level.FINE, forAccount("Couldn't start a cycle."), e);
+            return false;
+        }
+    }
+    
+    /**
+     * Return a string representation of the given array of tasks.
+     */
+    private String toString(Task[] tasks)
+    {
+        StringBuffer taskDump = new StringBuffer();
+        for (Task task : tasks)
+        {
+            taskDump.append(String.format("%s, Changed fields: %s\n", task, task.getChangedFieldNames()));
+        }
+        return taskDump.toString();
+    }
+    
+    /**
+     * Download the tasks modified since the last update, handing each one to the modify stage.
+     * On the first update of a new day, also check that we haven't missed any changes to the tasks,
+     * and hand on the tasks whose pseudo-dates have gone out of date.
+     * 
+     * @param modifyStage  The stage that inspects the tasks, and modifies them as needed.
+     * @param evaluation  The cycle's evaluation context.
+     * 
+     * @return  The number of tasks downloaded.
+     * 
+     * @throws TaskServiceException  On any error getting the tasks from the task service,
+     *                               or handing them to the modify stage.
+     */
+    private int getTasksToInspect(ModifyStage modifyStage, EvaluationContext evaluation) throws TaskServiceException
+    {
+        TaskHandler handler = new ModifyStageHandler(modifyStage);
+        
+        // The task service remembers when it last checked all the tasks, even across restarts.
+        Calendar now = new GregorianCalendar();
+        Calendar lastCheckTime = new GregorianCalendar();
+        lastCheckTime.setTimeInMillis(service.getLastTaskCheckTimestamp(user).getValue() * 1000);
+        boolean isCheckDue = isDifferentDay(now, lastCheckTime);
+        if (!isCheckDue && !isDifferentDay(now, lastRolloverTime))
+        {
+            return service.getModifiedTasks(user, handler);
+        }
+        
+        logger.info(forAccount("First update of the day, so rolling over pseudo-dates..."));
+        lastRolloverTime = now;
+        RolloverEngine rollover = new RolloverEngine(handler, evaluation);
+        int taskCount = service.getModifiedTasks(user, rollover);
+        if (isCheckDue)
+        {
+            logger.info(forAccount("Checking for changes to tasks that we missed..."));
+            taskCount += service.reconcileTasks(user, rollover);
+        }
+        int rolledOverCount = rollover.rollOver(service.getStoredTasks(user));
+        logger.info(forAccount("Tasks with out of date pseudo-dates: " + rolledOverCount));
+        return taskCount + rolledOverCount;
+    }
+    
+    /**
+     * Return true if the two times are on different days.
+     */
+    private static boolean isDifferentDay(Calendar a, Calendar b)
+    {
+        return a.get(Calendar.YEAR) != b.get(Calendar.YEAR) || 
+               a.get(Calendar.DAY_OF_YEAR) != b.get(Calendar.DAY_OF_YEAR);
+    }
+    
+    /**
+     * Wait for the modify stage to finish inspecting and modifying tasks.
+     * The modify stage hands each modified task on to be written back as soon as it can.
+     * 
+     * @param modifyStage  The stage that modifies the tasks.
+     * 
+     * @return  The modified tasks (a subset of the tasks inspected, in the same order).
+     * 
+     * @throws TaskServiceException  If modifying a task failed.
+     */
+    private Task[] finishModifying(ModifyStage modifyStage) throws TaskServiceException
+    {
+        try
+        {
+            return modifyStage.finish();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while modifying tasks.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new TaskServiceException("Failed to modify tasks.", e.getCause());
+        }
+    }
+    
+    /**
+     * Start deleting completed tasks in the background.
+     * 
+     * @return  The number of completed tasks deleted, once the deletion has finished.
+     */
+    private Future<Integer> deleteCompletedTasks()
+    {
+        return stageExecutor.submit(new Callable<Integer>()
+        {
+            public Integer call() throws TaskServiceException
+            {
+                return service.deleteCompletedTasks(user);
+            }
+        });
+    }
+    
+    /**
+     * Wait for the given background stage, and return its result.
+     * Rethrow any exception that the stage threw.
+     */
+    private static <T> T getResult(Future<T> stage) throws TaskServiceException
+    {
+        try
+        {
+            return stage.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while waiting for the task service.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TaskServiceException)
+            {
+                throw (TaskServiceException) e.getCause();
+            }
+            throw new TaskServiceException(e.getCause());
+        }
+    }
+    
+    /**
+     * Wait for the given background stage to finish, if it was started, ignoring its result.
+     * Does nothing if the stage has already finished.
+     */
+    private void awaitQuietly(Future<?> stage)
+    {
+        if (stage == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            getResult(stage);
+        }
+        catch (TaskServiceException e)
+        {
+            logger.log(Level.FINE, forAccount("Background stage failed."), e);
+        }
+    }
+    
+    // ---------- Private helper classes ----------
+    
+    /**
+     * Hands each task to the modify stage as it is downloaded.
+     */
+    private class ModifyStageHandler implements TaskHandler
+    {
+        private final ModifyStage modifyStage;
+        
+        ModifyStageHandler(ModifyStage modifyStage)
+        {
+            this.modifyStage = modifyStage;
+        }
+        
+        public void handle(Task task) throws TaskServiceException
+        {
+            if (isStopRequested)
+            {
+                return; // Don't start any new updates.
+            }
+            
+            if (logger.isLoggable(Level.FINER))
+            {
+                logger.finer(forAccount(task.toString()));
+            }
+            
+            try
+            {
+                modifyStage.add(task);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new TaskServiceException("Interrupted while modifying tasks.", e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new TaskServiceException("Failed to modify tasks.", e.getCause());
+            }
+        }
+    } // end of class ModifyStageHandler
+}
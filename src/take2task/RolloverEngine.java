@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import take2task.domain.EvaluationContext;
+import take2task.domain.Task;
+import take2task.service.TaskHandler;
+import take2task.service.TaskServiceException;
+
+/**
+ * Works out which tasks need changing on a new day, without downloading them all.
+ *
+ * Pseudo-dates are worked out from today's date, and so is whether a due date has been archived.
+ * So on a new day, a task's pseudo-date can go out of date without anyone touching the task.
+ * Rather than download every task to find those, the engine looks at the tasks as the task
+ * service last saw them, and picks out the ones whose pseudo-date is now out of date.
+ *
+ * The engine is used as the handler for the day's downloads, which it passes straight on.
+ * Those tasks are then left out when looking through the stored tasks, because the stored
+ * copies of them are no newer than the ones already handed on.
+ */
+class RolloverEngine implements TaskHandler
+{
+    private final TaskHandler handler;
+    private final EvaluationContext evaluation;
+    private final Set<Long> handledTaskIds = new HashSet<Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param handler  Receives the downloaded tasks, and the stored tasks that need changing.
+     * @param evaluation  The cycle's evaluation context, which says what today's pseudo-dates are.
+     */
+    RolloverEngine(TaskHandler handler, EvaluationContext evaluation)
+    {
+        this.handler = handler;
+        this.evaluation = evaluation;
+    }
+
+    /**
+     * Pass on a downloaded task, unless it has already been handled by an earlier download.
+     */
+    public synchronized void handle(Task task) throws TaskServiceException
+    {
+        if (handledTaskIds.add(task.getId()))
+        {
+            handler.handle(task);
+        }
+    }
+
+    /**
+     * Pass on each of the given stored tasks whose pseudo-date is out of date,
+     * unless it has already been handled.
+     *
+     * @param storedTasks  The tasks as the task service last saw them.
+     *
+     * @return  The number of tasks passed on.
+     */
+    synchronized int rollOver(Task[] storedTasks) throws TaskServiceException
+    {
+        int rolledOverCount = 0;
+        for (Task task : storedTasks)
+        {
+            if (!handledTaskIds.contains(task.getId()) && task.isPseudoDateOutOfDate(evaluation))
+            {
+                handledTaskIds.add(task.getId());
+                handler.handle(task);
+                rolledOverCount++;
+            }
+        }
+        return rolledOverCount;
+    }
+}
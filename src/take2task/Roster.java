@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list of accounts to process, loaded from a roster file.
+ *
+ * Each line of the roster file holds one account: a user id and a password,
+ * separated by white space. Blank lines, and lines starting with "#", are ignored.
+ */
+public class Roster
+{
+    private static final String COMMENT_START = "#";
+
+    private List<Account> accounts = new ArrayList<Account>();
+
+    /**
+     * One account on the roster.
+     */
+    public static class Account
+    {
+        private String userId;
+        private String password;
+
+        /**
+         * Constructor.
+         *
+         * @param userId  Task service user id.
+         * @param password  Task service password.
+         */
+        public Account(String userId, String password)
+        {
+            this.userId = userId;
+            this.password = password;
+        }
+
+        public String getUserId()
+        {
+            return userId;
+        }
+
+        public String getPassword()
+        {
+            return password;
+        }
+    } // end of class Account
+
+    /**
+     * Load a roster from the given file.
+     *
+     * @param file  The roster file.
+     *
+     * @return The roster.
+     *
+     * @throws IOException  On any error reading the file, or if a line of the file is not valid.
+     */
+    public static Roster load(File file) throws IOException
+    {
+        Roster roster = new Roster();
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            int lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT_START))
+                {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2)
+                {
+                    throw new IOException(String.format("%s line %d: expected <user id> <password>", file, lineNumber));
+                }
+                roster.accounts.add(new Account(fields[0], fields[1]));
+            }
+        }
+        finally
+        {
+            if (in != null)
+            {
+                in.close();
+            }
+        }
+        return roster;
+    }
+
+    /**
+     * Return the accounts on the roster.
+     */
+    public List<Account> getAccounts()
+    {
+        return accounts;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs processing cycles repeatedly at an interval, until shut down.
+ *
+ * Each cycle added to the scheduler is rescheduled only once its current run has finished,
+ * so a cycle never overlaps with itself. In fixed-rate mode, any start times missed because
+ * a run took longer than the interval are skipped, rather than being run back to back.
+ */
+public class Scheduler
+{
+    private static Logger logger = Logger.getLogger("take2task");
+
+    /**
+     * How the start time of the next run of a cycle is worked out.
+     */
+    public enum Mode
+    {
+        /**
+         * Start each run one interval after the previous run was due to start,
+         * so that runs don't drift by however long each run takes.
+         */
+        FIXED_RATE,
+
+        /**
+         * Start each run one interval after the previous run finished.
+         */
+        FIXED_DELAY
+    } // end of enum Mode
+
+    /**
+     * A processing cycle that the scheduler can run.
+     */
+    public interface Cycle
+    {
+        /**
+         * Do one processing cycle.
+         */
+        public abstract void runOnce();
+
+        /**
+         * Ask the cycle to stop as soon as it safely can, because the scheduler
+         * is shutting down. A cycle should finish any update that it has already
+         * started, but not start any new work.
+         */
+        public abstract void requestStop();
+    } // end of interface Cycle
+
+    /**
+     * A processing cycle that decides for itself how long to wait before its next run.
+     */
+    public interface AdaptiveCycle extends Cycle
+    {
+        /**
+         * Return the interval before the next run, or zero to use the interval
+         * the cycle was added to the scheduler with.
+         */
+        public abstract long getNextIntervalMillis();
+    } // end of interface AdaptiveCycle
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Mode mode;
+    private final double jitter;
+    private final Random random = new Random();
+    private final List<Cycle> cycles = new CopyOnWriteArrayList<Cycle>();
+    private volatile boolean isShuttingDown;
+
+    // ---------- Public methods ----------
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount  Maximum number of cycles to run at the same time.
+     * @param mode  How to work out the start time of each run.
+     * @param jitter  Fraction of the interval by which to randomly move each start time
+     *                earlier or later, for example 0.1 for plus or minus 10%. Spreads out
+     *                the load when many cycles have the same interval. Zero for no jitter.
+     */
+    public Scheduler(int threadCount, Mode mode, double jitter)
+    {
+        this.mode = mode;
+        this.jitter = jitter;
+        this.executor = new ScheduledThreadPoolExecutor(threadCount, new SchedulerThreadFactory());
+
+        // Once we are shutting down, don't start any runs that are waiting for their start time.
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Add a cycle to the scheduler. Its first run starts straight away
+     * (give or take the jitter).
+     *
+     * @param cycle  The cycle to run.
+     * @param intervalMillis  Interval between each run of the cycle.
+     */
+    public void add(Cycle cycle, long intervalMillis)
+    {
+        cycles.add(cycle);
+        Job job = new Job(cycle, intervalMillis);
+        job.nextStartMillis = System.currentTimeMillis();
+        executor.schedule(job, Math.abs(jitterMillis(intervalMillis)), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shut down the scheduler. Don't start any more runs, ask running cycles to stop,
+     * then wait for any cycles that are in the middle of a run to finish.
+     *
+     * @param timeoutMillis  Maximum time to wait for running cycles to finish.
+     *
+     * @return true if all running cycles finished, false if we gave up waiting.
+     */
+    public boolean shutdown(long timeoutMillis)
+    {
+        isShuttingDown = true;
+        executor.shutdown();
+        for (Cycle cycle : cycles)
+        {
+            cycle.requestStop();
+        }
+
+        try
+        {
+            if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                logger.info("Scheduler shut down.");
+                return true;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        logger.warning("Gave up waiting for running cycles to finish.");
+        executor.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Add a JVM shutdown hook that shuts down this scheduler, so that stopping the
+     * program (for example with Ctrl-C) lets any cycle that is writing tasks back
+     * finish its update first.
+     *
+     * @param timeoutMillis  Maximum time to wait for running cycles to finish.
+     */
+    public void addShutdownHook(final long timeoutMillis)
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread("take2task-shutdown")
+        {
+            @Override
+            public void run()
+            {
+                logger.info("Shutting down...");
+                shutdown(timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Wait until the scheduler has been shut down and all cycles have finished.
+     */
+    public void awaitTermination()
+    {
+        try
+        {
+            while (!executor.awaitTermination(1, TimeUnit.DAYS))
+            {
+                // Keep waiting.
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Return a random amount of time, within the jitter, by which to move a start time.
+     */
+    private long jitterMillis(long intervalMillis)
+    {
+        if (jitter <= 0)
+        {
+            return 0;
+        }
+        synchronized (random)
+        {
+            return (long) ((random.nextDouble() * 2 - 1) * jitter * intervalMillis);
+        }
+    }
+
+    // ---------- Private helper classes ----------
+
+    /**
+     * One cycle, scheduling itself again each time it finishes a run.
+     */
+    private class Job implements Runnable
+    {
+        private final Cycle cycle;
+        private final long intervalMillis;
+
+        // When this run was due to start, before any jitter was applied.
+        private long nextStartMillis;
+
+        Job(Cycle cycle, long intervalMillis)
+        {
+            this.cycle = cycle;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public void run()
+        {
+            if (isShuttingDown)
+            {
+                return;
+            }
+
+            try
+            {
+                cycle.runOnce();
+            }
+            catch (RuntimeException e)
+            {
+                // Don't let one bad run stop the cycle from ever running again.
+                logger.log(Level.SEVERE, "Cycle failed: " + e.getMessage(), e);
+            }
+            finally
+            {
+                scheduleNext();
+            }
+        }
+
+        private void scheduleNext()
+        {
+            if (isShuttingDown)
+            {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long intervalMillis = getNextIntervalMillis();
+            if (mode == Mode.FIXED_RATE)
+            {
+                nextStartMillis += intervalMillis;
+                if (nextStartMillis < now)
+                {
+                    // The run took longer than the interval. Skip the start times we have missed,
+                    // rather than starting the missed runs one straight after another.
+                    long missedCount = (now - nextStartMillis) / intervalMillis + 1;
+                    nextStartMillis += missedCount * intervalMillis;
+                    logger.fine(String.format("Run overran its interval, so skipped %d runs.", missedCount));
+                }
+            }
+            else
+            {
+                nextStartMillis = now + intervalMillis;
+            }
+
+            long delayMillis = Math.max(0, nextStartMillis + jitterMillis(intervalMillis) - now);
+            try
+            {
+                executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // We started shutting down while this run was finishing.
+            }
+        }
+
+        /**
+         * Return the interval before the next run, asking the cycle if it is adaptive.
+         */
+        private long getNextIntervalMillis()
+        {
+            if (cycle instanceof AdaptiveCycle)
+            {
+                long nextIntervalMillis = ((AdaptiveCycle) cycle).getNextIntervalMillis();
+                if (nextIntervalMillis > 0)
+                {
+                    return nextIntervalMillis;
+                }
+            }
+            return intervalMillis;
+        }
+    } // end of class Job
+
+    /**
+     * Names the scheduler threads, so that log output can be traced back to them.
+     */
+    private static class SchedulerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            return new Thread(runnable, "take2task-cycle-" + count.incrementAndGet());
+        }
+    } // end of class SchedulerThreadFactory
+}
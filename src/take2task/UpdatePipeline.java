@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import take2task.domain.Task;
+import take2task.domain.User;
+import take2task.service.TaskService;
+import take2task.service.TaskServiceException;
+
+/**
+ * The last stage of a processing cycle: writing modified tasks back to the task service.
+ *
+ * Modified tasks are handed over one at a time while later tasks are still being modified.
+ * As soon as there are enough for one update request, they are sent off in the background.
+ * Updates for one user are sent one after another, never at the same time,
+ * so that we don't hammer the task service.
+ */
+class UpdatePipeline
+{
+    private final TaskService service;
+    private final User user;
+    private final ExecutorService executor;
+
+    private List<Task> pendingTasks = new ArrayList<Task>();
+    private Future<Integer> lastUpdate; // Returns the number of tasks updated so far.
+    private int taskCount;
+
+    /**
+     * Constructor.
+     *
+     * @param service  The task service to write the tasks back to.
+     * @param user  The user whose tasks they are.
+     * @param executor  Used to send the updates in the background.
+     */
+    UpdatePipeline(TaskService service, User user, ExecutorService executor)
+    {
+        this.service = service;
+        this.user = user;
+        this.executor = executor;
+    }
+
+    /**
+     * Add a modified task to be written back. If there are now enough
+     * tasks waiting for one update request, start sending them.
+     */
+    synchronized void add(Task task)
+    {
+        pendingTasks.add(task);
+        taskCount++;
+        if (pendingTasks.size() >= service.getUpdateBatchSize(user))
+        {
+            send();
+        }
+    }
+
+    /**
+     * Return how many tasks have been added to the pipeline.
+     */
+    synchronized int getTaskCount()
+    {
+        return taskCount;
+    }
+
+    /**
+     * Send any tasks still waiting, then wait for all the updates to finish.
+     *
+     * @return The number of tasks that the task service updated.
+     *
+     * @throws TaskServiceException  If any of the updates failed.
+     */
+    int finish() throws TaskServiceException
+    {
+        Future<Integer> update;
+        synchronized (this)
+        {
+            if (!pendingTasks.isEmpty())
+            {
+                send();
+            }
+            update = lastUpdate;
+        }
+
+        if (update == null)
+        {
+            return 0;
+        }
+        return getResult(update);
+    }
+
+    /**
+     * Give up on any tasks still waiting, but wait for the updates already sent to finish,
+     * so that none of them is still running once the cycle has ended. Used when the cycle
+     * has failed, so a failed update is ignored. Does nothing after finish().
+     */
+    void abandon()
+    {
+        Future<Integer> update;
+        synchronized (this)
+        {
+            pendingTasks.clear();
+            update = lastUpdate;
+        }
+
+        if (update != null)
+        {
+            try
+            {
+                getResult(update);
+            }
+            catch (TaskServiceException e)
+            {
+                // The cycle has already failed. The tasks will be inspected again next cycle.
+            }
+        }
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Start sending the waiting tasks, once the update before has finished.
+     * Must be called while holding this object's lock.
+     */
+    private void send()
+    {
+        final Task[] tasks = pendingTasks.toArray(new Task[pendingTasks.size()]);
+        pendingTasks = new ArrayList<Task>();
+
+        final Future<Integer> previousUpdate = lastUpdate;
+        lastUpdate = executor.submit(new Callable<Integer>()
+        {
+            public Integer call() throws TaskServiceException
+            {
+                int updatedTaskCount = (previousUpdate == null) ? 0 : getResult(previousUpdate);
+                return updatedTaskCount + service.updateTasks(user, tasks);
+            }
+        });
+    }
+
+    /**
+     * Wait for the given update, and return its result.
+     * Rethrow any exception that the update threw.
+     */
+    private static int getResult(Future<Integer> update) throws TaskServiceException
+    {
+        try
+        {
+            return update.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while waiting for tasks to be updated.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TaskServiceException)
+            {
+                throw (TaskServiceException) e.getCause();
+            }
+            throw new TaskServiceException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.domain;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns the date strings that users type into task titles into dates.
+ * A date string is either a keyword such as "tomorrow" or "next friday",
+ * or a date in the locale's short numeric format, such as 24/5/11.
+ *
+ * Keywords are looked up in a table, rather than compared one by one. The date format is
+ * compiled once, from its pattern, into the order of its day, month and year fields and the
+ * text between them, and dates are read against it by hand. That way, a string that isn't a
+ * date is turned down without an exception being thrown and caught, and no DateFormat (which
+ * isn't safe for threads to share) is needed to read one.
+ *
+ * The same strings are parsed over and over: every time a task is inspected, and more than
+ * once while its title is picked apart. So the result of each string is remembered for the
+ * rest of the day (keywords mean a different date tomorrow), and parsing a string again only
+ * costs a lookup. An expression is safe for many threads to use at once.
+ */
+public class DateExpression
+{
+    // Add a week if the string starts with this.
+    private static final String ADD_WEEK_KEYWORD = "next";
+
+    // The keywords, and what date each one means.
+    private static final Map<String, Keyword> KEYWORDS = new HashMap<String, Keyword>();
+    static
+    {
+        addKeyword(Keyword.daysAhead(0), "today", "tod");
+        addKeyword(Keyword.daysAhead(1), "tomorrow", "tom");
+        addKeyword(Keyword.dayOfWeek(Calendar.MONDAY), "monday", "mon");
+        addKeyword(Keyword.dayOfWeek(Calendar.TUESDAY), "tuesday", "tues", "tue");
+        addKeyword(Keyword.dayOfWeek(Calendar.WEDNESDAY), "wednesday", "wed");
+        addKeyword(Keyword.dayOfWeek(Calendar.THURSDAY), "thursday", "thurs", "thur");
+        addKeyword(Keyword.dayOfWeek(Calendar.FRIDAY), "friday", "fri");
+        addKeyword(Keyword.dayOfWeek(Calendar.SATURDAY), "saturday", "sat");
+        addKeyword(Keyword.dayOfWeek(Calendar.SUNDAY), "sunday", "sun");
+    }
+
+    // The pattern to use when the locale's own short date pattern can't be compiled.
+    private static final String FALLBACK_PATTERN = "dd/MM/yy";
+
+    // The fields that a date pattern may contain.
+    private static final int DAY = 0;
+    private static final int MONTH = 1;
+    private static final int YEAR = 2;
+
+    // Two digit years are put in the century that starts this many years ago, as DateFormat does.
+    private static final int TWO_DIGIT_YEAR_YEARS_BACK = 80;
+
+    // The most digits a field may have. Longer numbers aren't taken as dates,
+    // which keeps the years within the range that Timestamp's date arithmetic handles.
+    private static final int MAX_FIELD_DIGITS = 5;
+
+    // The most results remembered for one day. Beyond this, strings are parsed every time.
+    private static final int MAX_REMEMBERED_RESULTS = 10000;
+
+    // Remembered in place of the result for a string that isn't a date.
+    private static final Timestamp NOT_A_DATE = new Timestamp(Long.MIN_VALUE);
+
+    private static volatile DateExpression defaultExpression = new DateExpression(Locale.getDefault());
+
+    // The compiled date pattern: the fields in order, and the text before each field and after the last.
+    private final int[] fields;
+    private final String[] literals;
+    private final boolean twoDigitYears;
+
+    private volatile DayResults results = new DayResults(Long.MIN_VALUE);
+
+    /**
+     * Constructor. Read dates in the short format of the given locale.
+     * If the locale's format isn't a numeric day, month and year, use DD/MM/YY.
+     *
+     * @param locale  The locale.
+     */
+    public DateExpression(Locale locale)
+    {
+        this(getShortPattern(locale), true);
+    }
+
+    /**
+     * Constructor. Read dates in the given format.
+     *
+     * @param pattern  A date pattern, as used by SimpleDateFormat, made up of numeric day (d),
+     *                 month (M) and year (y) fields, for example "dd/MM/yy".
+     *
+     * @throws IllegalArgumentException if the pattern has other fields, or lacks one of these.
+     */
+    public DateExpression(String pattern)
+    {
+        this(pattern, false);
+    }
+
+    /**
+     * Return the expression used by Timestamp.parse(). To begin with, it reads dates
+     * in the short format of the default locale.
+     */
+    public static DateExpression getDefault()
+    {
+        return defaultExpression;
+    }
+
+    /**
+     * Set the expression used by Timestamp.parse().
+     */
+    public static void setDefault(DateExpression expression)
+    {
+        defaultExpression = expression;
+    }
+
+    /**
+     * Return the date meant by the given string, taking keywords such as "tomorrow"
+     * to be relative to the given day.
+     *
+     * @param source  The string to parse. Either a keyword such as "tomorrow"
+     *                or a date in the expression's format.
+     * @param today  The value of today, as returned by Timestamp.todayValue().
+     *
+     * @return A timestamp, or null if the string isn't a date.
+     */
+    Timestamp parse(String source, long today)
+    {
+        if (source == null)
+        {
+            return null;
+        }
+
+        DayResults dayResults = results;
+        if (dayResults.today != today)
+        {
+            dayResults = new DayResults(today);
+            results = dayResults;
+        }
+
+        Timestamp date = dayResults.dates.get(source);
+        if (date == null)
+        {
+            date = evaluate(source, today);
+            if (date == null)
+            {
+                date = NOT_A_DATE;
+            }
+            if (dayResults.dates.size() < MAX_REMEMBERED_RESULTS)
+            {
+                dayResults.dates.put(source, date);
+            }
+        }
+        return (date == NOT_A_DATE) ? null : date;
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Constructor. Compile the given date pattern.
+     *
+     * @param pattern  The date pattern.
+     * @param fallBack  If true, and the pattern can't be compiled, compile FALLBACK_PATTERN instead.
+     *                  If false, and the pattern can't be compiled, throw IllegalArgumentException.
+     */
+    private DateExpression(String pattern, boolean fallBack)
+    {
+        List<Integer> fieldList = new ArrayList<Integer>();
+        List<String> literalList = new ArrayList<String>();
+        if (!compile(pattern, fieldList, literalList))
+        {
+            if (!fallBack)
+            {
+                throw new IllegalArgumentException("Not a numeric day, month and year date pattern: " + pattern);
+            }
+            fieldList.clear();
+            literalList.clear();
+            compile(FALLBACK_PATTERN, fieldList, literalList);
+            pattern = FALLBACK_PATTERN;
+        }
+
+        fields = new int[fieldList.size()];
+        for (int i = 0; i < fields.length; i++)
+        {
+            fields[i] = fieldList.get(i);
+        }
+        literals = literalList.toArray(new String[literalList.size()]);
+        twoDigitYears = pattern.indexOf("yyy") < 0;
+    }
+
+    /**
+     * Return the short date pattern of the given locale, or null if it doesn't have one.
+     */
+    private static String getShortPattern(Locale locale)
+    {
+        DateFormat format = DateFormat.getDateInstance(DateFormat.SHORT, locale);
+        return (format instanceof SimpleDateFormat) ? ((SimpleDateFormat) format).toPattern() : null;
+    }
+
+    /**
+     * Compile the given date pattern into its fields, and the literal text before each field
+     * and after the last one.
+     *
+     * @param pattern  The date pattern. May be null.
+     * @param fieldList  Receives the fields, in order.
+     * @param literalList  Receives the literal text, one more than the fields.
+     *
+     * @return true if the pattern is made up of exactly one each of numeric day, month and year fields.
+     */
+    private static boolean compile(String pattern, List<Integer> fieldList, List<String> literalList)
+    {
+        if (pattern == null)
+        {
+            return false;
+        }
+
+        StringBuffer literal = new StringBuffer();
+        int i = 0;
+        while (i < pattern.length())
+        {
+            char c = pattern.charAt(i);
+            if (c == '\'')
+            {
+                // Quoted text, where two quotes stand for one.
+                int end = i + 1;
+                while (end < pattern.length())
+                {
+                    if (pattern.charAt(end) == '\'')
+                    {
+                        if (end + 1 < pattern.length() && pattern.charAt(end + 1) == '\'' && end > i + 1)
+                        {
+                            literal.append('\'');
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    literal.append(pattern.charAt(end));
+                    end++;
+                }
+                if (end == i + 1)
+                {
+                    literal.append('\'');
+                }
+                i = end + 1;
+            }
+            else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+            {
+                int count = 1;
+                while (i + count < pattern.length() && pattern.charAt(i + count) == c)
+                {
+                    count++;
+                }
+
+                int field;
+                if (c == 'd' && count <= 2)
+                {
+                    field = DAY;
+                }
+                else if (c == 'M' && count <= 2)
+                {
+                    field = MONTH;
+                }
+                else if (c == 'y')
+                {
+                    field = YEAR;
+                }
+                else
+                {
+                    return false;
+                }
+                if (fieldList.contains(field))
+                {
+                    return false;
+                }
+
+                fieldList.add(field);
+                literalList.add(literal.toString());
+                literal.setLength(0);
+                i += count;
+            }
+            else
+            {
+                literal.append(c);
+                i++;
+            }
+        }
+        literalList.add(literal.toString());
+        return fieldList.size() == 3;
+    }
+
+    /**
+     * Return the date meant by the given string, working it out from scratch.
+     *
+     * @return A timestamp, or null if the string isn't a date.
+     */
+    private Timestamp evaluate(String source, long today)
+    {
+        if (source.trim().length() == 0)
+        {
+            return null;
+        }
+
+        boolean addWeek = false;
+        if (source.startsWith(ADD_WEEK_KEYWORD))
+        {
+            addWeek = true;
+            source = source.substring(ADD_WEEK_KEYWORD.length()).trim();
+        }
+
+        Keyword keyword = KEYWORDS.get(source);
+        if (keyword != null)
+        {
+            return new Timestamp(keyword.getDate(today, addWeek));
+        }
+        return parseDate(source, today);
+    }
+
+    /**
+     * Read a date in the expression's format from the start of the given string.
+     * As with DateFormat, anything after the date is ignored, and days and months
+     * out of range roll over into the months before or after. Unlike DateFormat,
+     * negative numbers, and numbers longer than MAX_FIELD_DIGITS, aren't taken as dates.
+     *
+     * @return A timestamp, or null if the string doesn't start with a date.
+     */
+    private Timestamp parseDate(String source, long today)
+    {
+        int[] values = new int[3];
+        boolean twoDigitYear = false;
+        int position = 0;
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (!source.startsWith(literals[i], position))
+            {
+                return null;
+            }
+            position += literals[i].length();
+
+            // Like DateFormat, allow spaces before a number.
+            while (position < source.length() && Character.isWhitespace(source.charAt(position)))
+            {
+                position++;
+            }
+
+            int start = position;
+            int value = 0;
+            while (position < source.length() && position - start < MAX_FIELD_DIGITS
+                    && source.charAt(position) >= '0' && source.charAt(position) <= '9')
+            {
+                value = value * 10 + (source.charAt(position) - '0');
+                position++;
+            }
+            if (position == start)
+            {
+                return null;
+            }
+            if (position < source.length() && source.charAt(position) >= '0' && source.charAt(position) <= '9')
+            {
+                // Too many digits.
+                return null;
+            }
+            values[fields[i]] = value;
+            if (fields[i] == YEAR)
+            {
+                twoDigitYear = twoDigitYears && position - start == 2;
+            }
+        }
+        if (!source.startsWith(literals[fields.length], position))
+        {
+            return null;
+        }
+
+        int year = values[YEAR];
+        if (twoDigitYear)
+        {
+            // Put the year in the century starting TWO_DIGIT_YEAR_YEARS_BACK years ago.
+            long centuryStart = Timestamp.addMonths(today, -12 * TWO_DIGIT_YEAR_YEARS_BACK);
+            int centuryStartYear = Timestamp.getYear(centuryStart);
+            year += centuryStartYear / 100 * 100;
+            if (year < centuryStartYear
+                    || (year == centuryStartYear && Timestamp.getDate(year, values[MONTH], values[DAY]) <= centuryStart))
+            {
+                year += 100;
+            }
+        }
+        return new Timestamp(Timestamp.getDate(year, values[MONTH], values[DAY]));
+    }
+
+    /**
+     * Add a keyword to the table, under each of the given names.
+     */
+    private static void addKeyword(Keyword keyword, String... names)
+    {
+        for (String name : names)
+        {
+            KEYWORDS.put(name, keyword);
+        }
+    }
+
+    // ---------- Nested classes ----------
+
+    /**
+     * A keyword's meaning: either a number of days from today,
+     * or the next day (including today) with a given day of the week.
+     */
+    private static class Keyword
+    {
+        private final int daysAhead;
+        private final int dayOfWeek;
+
+        /**
+         * Constructor.
+         *
+         * @param daysAhead  Days from today, if dayOfWeek is 0.
+         * @param dayOfWeek  A day of the week as defined by the Calendar class, or 0.
+         */
+        private Keyword(int daysAhead, int dayOfWeek)
+        {
+            this.daysAhead = daysAhead;
+            this.dayOfWeek = dayOfWeek;
+        }
+
+        /**
+         * Return a keyword meaning the given number of days from today.
+         */
+        static Keyword daysAhead(int daysAhead)
+        {
+            return new Keyword(daysAhead, 0);
+        }
+
+        /**
+         * Return a keyword meaning the next day with the given day of the week,
+         * as defined by the Calendar class. For example, Calendar.MONDAY.
+         */
+        static Keyword dayOfWeek(int dayOfWeek)
+        {
+            return new Keyword(0, dayOfWeek);
+        }
+
+        /**
+         * Return the timestamp value of the date the keyword means.
+         *
+         * @param today  The value of today, as returned by Timestamp.todayValue().
+         * @param addWeek  Whether to add a week to a day of the week.
+         */
+        long getDate(long today, boolean addWeek)
+        {
+            if (dayOfWeek == 0)
+            {
+                return Timestamp.addDays(today, daysAhead);
+            }
+
+            // We want the next date (including but not earlier than today) with the given day.
+            int days = (dayOfWeek - Timestamp.getDayOfWeek(today) + 7) % 7;
+
+            // Have we been asked to add a week?
+            if (addWeek)
+            {
+                days += 7;
+            }
+            return Timestamp.addDays(today, days);
+        }
+    } // end of class Keyword
+
+    /**
+     * The results remembered for one day.
+     */
+    private static class DayResults
+    {
+        final long today;
+        final ConcurrentMap<String, Timestamp> dates = new ConcurrentHashMap<String, Timestamp>();
+
+        /**
+         * Constructor.
+         *
+         * @param today  The value of the day, as returned by Timestamp.todayValue().
+         */
+        DayResults(long today)
+        {
+            this.today = today;
+        }
+    } // end of class DayResults
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.domain;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything about today that Task.modify() needs, worked out once for a processing cycle.
+ *
+ * Today's date is fixed when the context is created, so all the tasks of a cycle are modified
+ * as of the same day, even if the cycle runs past midnight. The pseudo-date of every kind of
+ * context and every status, and the archive threshold, are worked out up front, so each task
+ * only has to look them up. Giving the constructor a particular time makes the results
+ * repeatable, for testing.
+ *
+ * A context is never changed after it has been constructed, so it is safe for many threads
+ * to use it at once (for example, when modifying tasks in parallel).
+ */
+public class EvaluationContext
+{
+    private final long today;
+    private final Timestamp todayTimestamp;
+    private final int day;
+    private final long archiveThreshold;
+
+    // The pseudo-date for each status (by ordinal), for each month offset that pseudo-dates use.
+    private final Map<Integer, Timestamp[]> pseudoDatesByMonthOffset = new HashMap<Integer, Timestamp[]>();
+    private final Timestamp[] defaultPseudoDates;
+
+    // The pseudo-dates for each context id, filled in as contexts are first seen.
+    // Saves comparing the context name for every task.
+    private final ConcurrentMap<Long, Timestamp[]> pseudoDatesByContextId = new ConcurrentHashMap<Long, Timestamp[]>();
+
+    /**
+     * Constructor. Evaluate as of now.
+     */
+    public EvaluationContext()
+    {
+        this(Calendar.getInstance());
+    }
+
+    /**
+     * Constructor. Evaluate as of the given time.
+     *
+     * @param now  The time, on a calendar in our timezone. Not changed.
+     */
+    public EvaluationContext(Calendar now)
+    {
+        today = Timestamp.todayValue(now);
+        todayTimestamp = new Timestamp(today);
+        day = now.get(Calendar.YEAR) * 1000 + now.get(Calendar.DAY_OF_YEAR);
+        archiveThreshold = Timestamp.getArchiveThreshold(today);
+
+        for (String contextName : new String[] { null, Task.WORK_CONTEXT_NAME, Task.NOTES_CONTEXT_NAME })
+        {
+            int monthOffset = Timestamp.getPseudoDateMonthOffset(contextName);
+            pseudoDatesByMonthOffset.put(monthOffset, getPseudoDates(monthOffset));
+        }
+        defaultPseudoDates = pseudoDatesByMonthOffset.get(Timestamp.getPseudoDateMonthOffset(null));
+    }
+
+    /**
+     * Return today, with the time component set to exactly 12 noon.
+     */
+    public Timestamp getToday()
+    {
+        return todayTimestamp;
+    }
+
+    /**
+     * Return a number that identifies today's date. Different days have different numbers.
+     */
+    public int getDay()
+    {
+        return day;
+    }
+
+    /**
+     * Return the pseudo-date for the given context and status.
+     *
+     * @param context  A task context, or null.
+     * @param status   A task status.
+     */
+    public Timestamp getPseudoDate(Context context, Task.Status status)
+    {
+        if (context == null)
+        {
+            return defaultPseudoDates[status.ordinal()];
+        }
+
+        Timestamp[] pseudoDates = pseudoDatesByContextId.get(context.getId());
+        if (pseudoDates == null)
+        {
+            int monthOffset = Timestamp.getPseudoDateMonthOffset(context.getName());
+            pseudoDates = pseudoDatesByMonthOffset.get(monthOffset);
+            pseudoDatesByContextId.put(context.getId(), pseudoDates);
+        }
+        return pseudoDates[status.ordinal()];
+    }
+
+    /**
+     * Return whether the given date has been archived.
+     */
+    public boolean isArchived(Timestamp date)
+    {
+        return isArchived(date.getValue());
+    }
+
+    /**
+     * Return whether the date with the given timestamp value has been archived.
+     */
+    public boolean isArchived(long value)
+    {
+        return value > archiveThreshold;
+    }
+
+    /**
+     * Return whether the given date represents today or a recent date, but having been archived.
+     */
+    public boolean isTodayOrRecentButArchived(Timestamp date)
+    {
+        return isArchived(date) && Timestamp.unarchive(date.getValue()) <= today;
+    }
+
+    /**
+     * Return a new date parsed from the given string, taking keywords such as "tomorrow"
+     * to be relative to today.
+     *
+     * @see Timestamp#parse(String)
+     */
+    public Timestamp parse(String source)
+    {
+        return Timestamp.parse(source, today);
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Return the pseudo-date for each status, by ordinal, for the given month offset.
+     */
+    private Timestamp[] getPseudoDates(int monthOffset)
+    {
+        Task.Status[] statuses = Task.Status.values();
+        Timestamp[] pseudoDates = new Timestamp[statuses.length];
+        for (Task.Status status : statuses)
+        {
+            pseudoDates[status.ordinal()] = new Timestamp(Timestamp.getPseudoDate(monthOffset, status.getPseudoDateDayOfMonth(), today));
+        }
+        return pseudoDates;
+    }
+}
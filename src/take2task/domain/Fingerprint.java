@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.domain;
+
+/**
+ * Builds up a 64-bit fingerprint of a series of values, using the FNV-1a hash.
+ * Two different series of values almost certainly have different fingerprints.
+ * Each value is added with its length (or a null marker), so that, for example,
+ * adding "ab" then "c" gives a different fingerprint from adding "a" then "bc".
+ */
+public class Fingerprint
+{
+    private static final long OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long PRIME = 0x100000001B3L;
+
+    private long value = OFFSET_BASIS;
+
+    /**
+     * Add a number to the fingerprint.
+     *
+     * @return This fingerprint, so that calls can be chained.
+     */
+    public Fingerprint add(long number)
+    {
+        for (int shift = 0; shift < 64; shift += 8)
+        {
+            value = (value ^ ((number >>> shift) & 0xFF)) * PRIME;
+        }
+        return this;
+    }
+
+    /**
+     * Add a string to the fingerprint. The string may be null.
+     *
+     * @return This fingerprint, so that calls can be chained.
+     */
+    public Fingerprint add(String string)
+    {
+        if (string == null)
+        {
+            return add(-1);
+        }
+        add(string.length());
+        for (int i = 0; i < string.length(); i++)
+        {
+            value = (value ^ string.charAt(i)) * PRIME;
+        }
+        return this;
+    }
+
+    /**
+     * Return the fingerprint of the values added so far.
+     */
+    public long getValue()
+    {
+        return value;
+    }
+}
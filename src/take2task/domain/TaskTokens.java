@@ -1,321 +1,430 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.domain;
-
-import java.util.LinkedList;
-import java.util.List;
-
-/**
- * The tokens resulting from parsing a task title using the extra Take2Task syntax.
- */
-public class TaskTokens
-{
-    /**
-     * Token delimiter.
-     * One of these characters represents the start of each modifier.
-     */
-    public static final char DELIMITER = '/';
-    
-    /*
-     * The number of delimiter characters in a row which precede a due date.
-     */
-    private static final int DUE_DATE_DELIMITER_COUNT = 2;
-    
-    /*
-     * The number of delimiter characters in a row which precede a start date.
-     * Must be a different number than for due date.
-     */
-    private static final int START_DATE_DELIMITER_COUNT = 3;
-
-    /*
-     * The number of delimiter characters in a row which precede a start date.
-     * Must be a different number than for due date and for start date.
-     */
-    private static final int REPEAT_DELIMITER_COUNT = 4;
-
-    /**
-     * The delimiter sequence preceding a due date.
-     */
-    public static final String DUE_DATE_DELIMITER;
-    
-    /**
-     * The delimiter sequence preceding a start date.
-     */
-    private static final String START_DATE_DELIMITER;
-    
-    /**
-     * The delimiter sequence preceding a repeat.
-     */
-    private static final String REPEAT_DELIMITER;
-    
-    private String description;
-    private String dueDate;
-    private String startDate;
-    private String repeat;
-    private List<String> modifiers = new LinkedList<String>();
-    
-    /**
-     * Static initialiser.
-     * Initialise the due date and start date delimiter strings.
-     */
-    static
-    {
-        // The number of delimiter characters which precedes a due date must not be the same
-        // as for a start date. If it is we can't distinguish them when parsing.
-        // The number for due date should be shorter, since it is far more common to
-        // enter due dates than start dates, hence make the more convenient action for due date.
-        // Same goes for the repeat string.
-        assert DUE_DATE_DELIMITER_COUNT < START_DATE_DELIMITER_COUNT && 
-               START_DATE_DELIMITER_COUNT < REPEAT_DELIMITER_COUNT;
-        
-        // Build the due date delimiter string.
-        StringBuffer dueDateDelimiterBuffer = new StringBuffer();
-        for (int i = 0; i < DUE_DATE_DELIMITER_COUNT; i++)
-        {
-            dueDateDelimiterBuffer.append(DELIMITER);
-        }
-        DUE_DATE_DELIMITER = dueDateDelimiterBuffer.toString();
-        
-        // Build the start date delimiter string.
-        StringBuffer startDateDelimiterBuffer = new StringBuffer();
-        for (int i = 0; i < START_DATE_DELIMITER_COUNT; i++)
-        {
-            startDateDelimiterBuffer.append(DELIMITER);
-        }
-        START_DATE_DELIMITER = startDateDelimiterBuffer.toString();
-        
-        // Build the repeat delimiter string.
-        StringBuffer repeatDelimiterBuffer = new StringBuffer();
-        for (int i = 0; i < REPEAT_DELIMITER_COUNT; i++)
-        {
-            repeatDelimiterBuffer.append(DELIMITER);
-        }
-        REPEAT_DELIMITER = repeatDelimiterBuffer.toString();
-    }
-    
-    /**
-     * Constructor. Parse the given task title string into task tokens.
-     * 
-     * @param title  A task title using the extra Take2Task syntax to specify task fields.
-     */
-    public TaskTokens(String title)
-    {
-        int firstDelimiterIndex = title.indexOf(" " + DELIMITER);
-        if (firstDelimiterIndex == -1)
-        {
-            description = title.trim();
-            return;
-        }
-        else
-        {
-            firstDelimiterIndex++; // to go past the space
-        }
-
-        // Get the description
-        description = title.substring(0, firstDelimiterIndex).trim();
-        String remainder = title.substring(firstDelimiterIndex).trim();
-        
-        // Look for a repeat string and remove it from the remainder string. 
-        // We have to do this before start date and due date, since their 
-        // identifier strings are a sub-string of the repeat string.
-        String[] results = findAndRemove(remainder, REPEAT_DELIMITER);
-        remainder = results[0];
-        repeat = results[1];
-
-        // Look for a start date and remove it from the remainder string. 
-        // We have to do this before due date, since the due date identifier string
-        // is a sub-string of the start date string.
-        results = findAndRemove(remainder, START_DATE_DELIMITER);
-        remainder = results[0];
-        startDate = results[1];
-
-        // Look for a due date and remove it from the remainder string. 
-        results = findAndRemove(remainder, DUE_DATE_DELIMITER);
-        remainder = results[0];
-        dueDate = results[1];
-        
-        // Parse the remainder into modifiers.
-        String[] stringsAfterDelimiters = remainder.split("" + DELIMITER);
-        for (String modifier : stringsAfterDelimiters)
-        {
-            modifier = modifier.trim();
-            if (modifier.length() > 0)
-            {
-                modifiers.add(modifier);
-            }
-        }
-        
-        // Users :-) say that they sometimes forget to put two delimiters before a due date.
-        // For example, instead of "@@today" they reenter just "@today". They want any valid
-        // date after a single delimiter to be treated as a due date as well.
-        // So if we haven't already got a due date, parse the remaining delimiters, 
-        // and if one matches a date, store it as due date.
-        if (dueDate == null)
-        {
-            for (String modifier : modifiers)
-            {
-                if (Timestamp.parse(modifier) != null)
-                {
-                    // This is a hack. We have just parsed the string, but now we are 
-                    // going to store the string so it will be parsed again in Task.modify().
-                    // So be it!
-                    dueDate = modifier;
-                    modifiers.remove(modifier);
-                    break;
-                }
-            }
-        }
-    }
-    
-    /**
-     * Return the description, which is the part of the title before any modifiers, 
-     * that is, before the first delimiter character.
-     */
-    public String getDescription()
-    {
-        return this.description;
-    }
-    
-    /**
-     * Return the due date string which follows the due date delimiter characters.
-     * Return an empty string if the due date delimiter characters were found, but
-     * if there was no string following them (i.e. indicating just pseudo-date override).
-     * Return null if the due date delimiter characters were not found.
-     */
-    public String getDueDate()
-    {
-        return this.dueDate;
-    }
-    
-    /**
-     * Return the start date string which follows the start date delimiter characters.
-     * Return an empty string if the start date delimiter characters were found, but
-     * if there was no string following them.
-     * Return null if the start date delimiter characters were not found.
-     */
-    public String getStartDate()
-    {
-        return this.startDate;
-    }
-    
-    /**
-     * Return the repeat string which follows the repeat delimiter characters.
-     * Return an empty string if the repeat delimiter characters were found, but
-     * if there was no string following them.
-     * Return null if the repeat delimiter characters were not found.
-     */
-    public String getRepeat()
-    {
-        return this.repeat;
-    }
-    
-    /**
-     * Return the modifiers. These are the strings that follow each single
-     * delimiter character.
-     * 
-     * @return The modifiers. If there were no modifiers, return an empty set (not a null).
-     */
-    public List<String> getModifiers()
-    {
-        return this.modifiers;
-    }
-    
-    /**
-     * Return a string representation of the task.
-     */
-    @Override
-    public String toString()
-    {
-        StringBuffer buffer = new StringBuffer(
-            String.format("Description: [%s], Due date: [%s], Startdate: [%s], Repeat: [%s], Modifiers:" , 
-                          getDescription(), getDueDate(), getStartDate(), getRepeat()));
-        
-        for (String modifier : getModifiers())
-        {
-            buffer.append(String.format(" [%s]", modifier));
-        }
-        
-        return buffer.toString();
-    }
-    
-    /**
-     * Look for the given sequence of delimiters in the given source string.
-     * If it is present, remove it and all characters that follow it until
-     * the next delimiter or the end of the string.
-     * 
-     * @param str  The string to parse.
-     * @param delimiters  The sequence of delimiters to look for.
-     * 
-     * @return  An array of two strings.
-     *          The zeroth element is the remainder of str after removing
-     *          the sequence of delimiters and the string that follows it
-     *          until the next delimiter or the end of str. If the sequence
-     *          of delimiters is not found, the zeroth element is str unchanged.
-     *          The first element is the string that follows the sequence
-     *          of delimiters until the next delimiter or the end of str.
-     *          If the sequence of delimiters is not found, the first element is null.
-     */
-    private String[] findAndRemove(String source, String delimiters)
-    {
-        String[] results = new String[2];
-        
-        // Look for the delimiter sequence.
-        int indexOfDelimiterSequence = source.indexOf(delimiters.toString());
-        
-        if (indexOfDelimiterSequence == -1) // not found
-        {
-            results[0] = source;
-            results[1] = null;
-        }
-        else
-        {
-            String strBeforeDelimiterSequence = source.substring(0, indexOfDelimiterSequence).trim();
-            String strAfterDelimiterSequence = source.substring(indexOfDelimiterSequence + delimiters.length());
-            int indexOfNextDelimiter = strAfterDelimiterSequence.indexOf(DELIMITER);
-            if (indexOfNextDelimiter == -1) // not found
-            {
-                results[0] = strBeforeDelimiterSequence;
-                results[1] = strAfterDelimiterSequence.trim();
-            }
-            else
-            {
-                results[0] = strBeforeDelimiterSequence + ' ' + strAfterDelimiterSequence.substring(indexOfNextDelimiter);
-                results[1] = strAfterDelimiterSequence.substring(0, indexOfNextDelimiter).trim();
-            }
-        }
-        
-        return results;
-    }
-    
-    /**
-     * Main method, used for testing.
-     * 
-     * @param args  Command line arguments. Not used.
-     */
-    public static void main(String[] args)
-    {
-        String[] titles = 
-        {
-            "Do stuff sometime",
-            "Buy a newspaper //next tuesday ///next monday /top /star /errand",
-            "Fly to the moon //next monday",
-            "Fly back from the moon //next friday ///next monday",
-            "Do a serious work task /sdk handover",
-            "Discuss the serious work task with someone important /sdk handover /discuss /top //tomorrow",
-            "Book a holiday /holiday //",
-            "Book another holiday /holiday /star // next month",
-            "Do this every week //sun ///sat ////weekly",
-            "Start this every Monday ///monday ////daily",
-            "These should not become tags because no space before the slash: before/during/after"
-        };
-        
-        for (String title : titles)
-        {
-            TaskTokens taskTokens = new TaskTokens(title);
-            System.out.printf("%s : %s\n", title, taskTokens);
-        }
-    }
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tokens resulting from parsing a task title using the extra Take2Task syntax.
+ * 
+ * The title is read once, from start to end. Each run of delimiters and the text that follows
+ * it are noted as offsets into the title, and strings are only made from them when they are 
+ * asked for. A run is taken as the repeat, the start date or the due date, in that order, 
+ * by the number of delimiters in it, as each run is reached; the first run with enough 
+ * delimiters for a token that hasn't been found yet is taken for it. What is left of the 
+ * runs are the modifiers.
+ */
+public class TaskTokens
+{
+    /**
+     * Token delimiter.
+     * One of these characters represents the start of each modifier.
+     */
+    public static final char DELIMITER = '/';
+    
+    /*
+     * The number of delimiter characters in a row which precede a due date.
+     */
+    private static final int DUE_DATE_DELIMITER_COUNT = 2;
+    
+    /*
+     * The number of delimiter characters in a row which precede a start date.
+     * Must be a different number than for due date.
+     */
+    private static final int START_DATE_DELIMITER_COUNT = 3;
+
+    /*
+     * The number of delimiter characters in a row which precede a start date.
+     * Must be a different number than for due date and for start date.
+     */
+    private static final int REPEAT_DELIMITER_COUNT = 4;
+
+    /**
+     * The delimiter sequence preceding a due date.
+     */
+    public static final String DUE_DATE_DELIMITER;
+    
+    /*
+     * The tokens that follow a run of several delimiters, in the order in which runs are
+     * matched to them, and the number of delimiters that precede each one. Each token's 
+     * identifier is a sub-string of the one before it, so it has to be looked for after it.
+     */
+    private static final int REPEAT = 0;
+    private static final int START_DATE = 1;
+    private static final int DUE_DATE = 2;
+    private static final int[] TOKEN_DELIMITER_COUNTS = 
+        { REPEAT_DELIMITER_COUNT, START_DATE_DELIMITER_COUNT, DUE_DATE_DELIMITER_COUNT };
+    
+    // The start offset of a token that wasn't found.
+    private static final int NOT_FOUND = -1;
+    
+    private final String title;
+    private final EvaluationContext evaluation;
+    
+    // Offsets into the title, of the start and end of each token.
+    private int descriptionStart;
+    private int descriptionEnd;
+    private final int[] tokenStarts = { NOT_FOUND, NOT_FOUND, NOT_FOUND };
+    private final int[] tokenEnds = new int[TOKEN_DELIMITER_COUNTS.length];
+    private int[] modifierStarts = new int[4];
+    private int[] modifierEnds = new int[4];
+    private int modifierCount;
+    
+    // The modifier taken as the due date, if it was only found by trying the modifiers as dates.
+    private boolean isDueDateResolved;
+    private int dueDateModifier = NOT_FOUND;
+    private Timestamp dueDateValue;
+    
+    // The strings made from the offsets, once they have been asked for.
+    private String description;
+    private List<String> modifiers;
+    
+    /**
+     * Static initialiser.
+     * Initialise the due date delimiter string.
+     */
+    static
+    {
+        // The number of delimiter characters which precedes a due date must not be the same
+        // as for a start date. If it is we can't distinguish them when parsing.
+        // The number for due date should be shorter, since it is far more common to
+        // enter due dates than start dates, hence make the more convenient action for due date.
+        // Same goes for the repeat string.
+        assert DUE_DATE_DELIMITER_COUNT < START_DATE_DELIMITER_COUNT && 
+               START_DATE_DELIMITER_COUNT < REPEAT_DELIMITER_COUNT;
+        
+        // Build the due date delimiter string.
+        StringBuffer dueDateDelimiterBuffer = new StringBuffer();
+        for (int i = 0; i < DUE_DATE_DELIMITER_COUNT; i++)
+        {
+            dueDateDelimiterBuffer.append(DELIMITER);
+        }
+        DUE_DATE_DELIMITER = dueDateDelimiterBuffer.toString();
+    }
+    
+    /**
+     * Constructor. Parse the given task title string into task tokens.
+     * Dates are worked out as of today.
+     * 
+     * @param title  A task title using the extra Take2Task syntax to specify task fields.
+     */
+    public TaskTokens(String title)
+    {
+        this(title, null);
+    }
+    
+    /**
+     * Constructor. Parse the given task title string into task tokens.
+     * 
+     * @param title  A task title using the extra Take2Task syntax to specify task fields.
+     * @param evaluation  The evaluation context to work out dates with, or null to work them out as of today.
+     */
+    public TaskTokens(String title, EvaluationContext evaluation)
+    {
+        this.title = title;
+        this.evaluation = evaluation;
+        
+        // The description runs up to the first delimiter that follows a space.
+        int length = title.length();
+        int position = 0;
+        while (position < length && 
+               !(title.charAt(position) == DELIMITER && position > 0 && title.charAt(position - 1) == ' '))
+        {
+            position++;
+        }
+        descriptionStart = trimStart(0, position);
+        descriptionEnd = trimEnd(descriptionStart, position);
+        
+        // Then each run of delimiters is followed by text, up to the next delimiter.
+        while (position < length)
+        {
+            int delimiterCount = 0;
+            while (position < length && title.charAt(position) == DELIMITER)
+            {
+                delimiterCount++;
+                position++;
+            }
+            
+            int textStart = position;
+            while (position < length && title.charAt(position) != DELIMITER)
+            {
+                position++;
+            }
+            addRun(delimiterCount, textStart, position);
+        }
+    }
+    
+    /**
+     * Return the description, which is the part of the title before any modifiers, 
+     * that is, before the first delimiter character.
+     */
+    public String getDescription()
+    {
+        if (description == null)
+        {
+            description = title.substring(descriptionStart, descriptionEnd);
+        }
+        return this.description;
+    }
+    
+    /**
+     * Return the due date string which follows the due date delimiter characters.
+     * Return an empty string if the due date delimiter characters were found, but
+     * if there was no string following them (i.e. indicating just pseudo-date override).
+     * Return null if the due date delimiter characters were not found.
+     */
+    public String getDueDate()
+    {
+        resolveDueDate();
+        return getToken(DUE_DATE);
+    }
+    
+    /**
+     * Return the date meant by the due date string, or null if there isn't a due date string
+     * or it isn't a date. If the due date was found by trying the modifiers as dates, the date
+     * found then is returned, rather than the string being parsed again.
+     */
+    public Timestamp getDueDateValue()
+    {
+        resolveDueDate();
+        if (dueDateValue == null && tokenStarts[DUE_DATE] != NOT_FOUND)
+        {
+            dueDateValue = parse(getToken(DUE_DATE));
+        }
+        return dueDateValue;
+    }
+    
+    /**
+     * Return the start date string which follows the start date delimiter characters.
+     * Return an empty string if the start date delimiter characters were found, but
+     * if there was no string following them.
+     * Return null if the start date delimiter characters were not found.
+     */
+    public String getStartDate()
+    {
+        return getToken(START_DATE);
+    }
+    
+    /**
+     * Return the date meant by the start date string, or null if there isn't a start date string
+     * or it isn't a date.
+     */
+    public Timestamp getStartDateValue()
+    {
+        return (tokenStarts[START_DATE] == NOT_FOUND) ? null : parse(getToken(START_DATE));
+    }
+    
+    /**
+     * Return the repeat string which follows the repeat delimiter characters.
+     * Return an empty string if the repeat delimiter characters were found, but
+     * if there was no string following them.
+     * Return null if the repeat delimiter characters were not found.
+     */
+    public String getRepeat()
+    {
+        return getToken(REPEAT);
+    }
+    
+    /**
+     * Return the modifiers. These are the strings that follow each single
+     * delimiter character.
+     * 
+     * @return The modifiers. If there were no modifiers, return an empty set (not a null).
+     *         The list may be changed, for example to remove modifiers once they have been used.
+     */
+    public List<String> getModifiers()
+    {
+        if (modifiers == null)
+        {
+            resolveDueDate();
+            modifiers = new ArrayList<String>(modifierCount);
+            for (int i = 0; i < modifierCount; i++)
+            {
+                if (i != dueDateModifier)
+                {
+                    modifiers.add(title.substring(modifierStarts[i], modifierEnds[i]));
+                }
+            }
+        }
+        return this.modifiers;
+    }
+    
+    /**
+     * Return a string representation of the task.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuffer buffer = new StringBuffer(
+            String.format("Description: [%s], Due date: [%s], Startdate: [%s], Repeat: [%s], Modifiers:" , 
+                          getDescription(), getDueDate(), getStartDate(), getRepeat()));
+        
+        for (String modifier : getModifiers())
+        {
+            buffer.append(String.format(" [%s]", modifier));
+        }
+        
+        return buffer.toString();
+    }
+    
+    // ---------- Private helper methods ----------
+    
+    /**
+     * Take in a run of delimiters and the text that follows it.
+     * 
+     * If the run has enough delimiters for a token that hasn't been found yet, that many
+     * are taken for it. If there are none left, the token is the text; otherwise the token 
+     * is empty, and the rest of the delimiters go on to the next token. If any delimiters
+     * are left after all the tokens, the text is a modifier.
+     * 
+     * @param delimiterCount  The number of delimiters in the run.
+     * @param textStart  The offset of the start of the text.
+     * @param textEnd  The offset of the end of the text.
+     */
+    private void addRun(int delimiterCount, int textStart, int textEnd)
+    {
+        int start = trimStart(textStart, textEnd);
+        int end = trimEnd(start, textEnd);
+        
+        for (int token = 0; token < TOKEN_DELIMITER_COUNTS.length; token++)
+        {
+            if (tokenStarts[token] == NOT_FOUND && delimiterCount >= TOKEN_DELIMITER_COUNTS[token])
+            {
+                delimiterCount -= TOKEN_DELIMITER_COUNTS[token];
+                if (delimiterCount == 0)
+                {
+                    tokenStarts[token] = start;
+                    tokenEnds[token] = end;
+                    return;
+                }
+                tokenStarts[token] = textStart;
+                tokenEnds[token] = textStart;
+            }
+        }
+        
+        if (start < end)
+        {
+            if (modifierCount == modifierStarts.length)
+            {
+                int[] starts = new int[modifierCount * 2];
+                int[] ends = new int[modifierCount * 2];
+                System.arraycopy(modifierStarts, 0, starts, 0, modifierCount);
+                System.arraycopy(modifierEnds, 0, ends, 0, modifierCount);
+                modifierStarts = starts;
+                modifierEnds = ends;
+            }
+            modifierStarts[modifierCount] = start;
+            modifierEnds[modifierCount] = end;
+            modifierCount++;
+        }
+    }
+    
+    /**
+     * If there isn't a due date string, look for one among the modifiers.
+     * Only done once, when the due date or the modifiers are first asked for.
+     */
+    private void resolveDueDate()
+    {
+        if (isDueDateResolved)
+        {
+            return;
+        }
+        isDueDateResolved = true;
+        
+        // Users :-) say that they sometimes forget to put two delimiters before a due date.
+        // For example, instead of "@@today" they reenter just "@today". They want any valid
+        // date after a single delimiter to be treated as a due date as well.
+        // So if we haven't already got a due date, parse the modifiers, 
+        // and if one matches a date, take it as the due date, keeping the date for later.
+        if (tokenStarts[DUE_DATE] == NOT_FOUND)
+        {
+            for (int i = 0; i < modifierCount; i++)
+            {
+                Timestamp date = parse(title.substring(modifierStarts[i], modifierEnds[i]));
+                if (date != null)
+                {
+                    tokenStarts[DUE_DATE] = modifierStarts[i];
+                    tokenEnds[DUE_DATE] = modifierEnds[i];
+                    dueDateModifier = i;
+                    dueDateValue = date;
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Return the given token, or null if it wasn't found.
+     */
+    private String getToken(int token)
+    {
+        return (tokenStarts[token] == NOT_FOUND) ? null : title.substring(tokenStarts[token], tokenEnds[token]);
+    }
+    
+    /**
+     * Return the date meant by the given string, as of the evaluation context if there is one.
+     */
+    private Timestamp parse(String source)
+    {
+        return (evaluation == null) ? Timestamp.parse(source) : evaluation.parse(source);
+    }
+    
+    /**
+     * Return the offset of the first character in the given part of the title that
+     * String.trim() would keep, or the end offset if there isn't one.
+     */
+    private int trimStart(int start, int end)
+    {
+        while (start < end && title.charAt(start) <= ' ')
+        {
+            start++;
+        }
+        return start;
+    }
+    
+    /**
+     * Return the offset after the last character in the given part of the title that
+     * String.trim() would keep, or the start offset if there isn't one.
+     */
+    private int trimEnd(int start, int end)
+    {
+        while (end > start && title.charAt(end - 1) <= ' ')
+        {
+            end--;
+        }
+        return end;
+    }
+    
+    /**
+     * Main method, used for testing.
+     * 
+     * @param args  Command line arguments. Not used.
+     */
+    public static void main(String[] args)
+    {
+        String[] titles = 
+        {
+            "Do stuff sometime",
+            "Buy a newspaper //next tuesday ///next monday /top /star /errand",
+            "Fly to the moon //next monday",
+            "Fly back from the moon //next friday ///next monday",
+            "Do a serious work task /sdk handover",
+            "Discuss the serious work task with someone important /sdk handover /discuss /top //tomorrow",
+            "Book a holiday /holiday //",
+            "Book another holiday /holiday /star // next month",
+            "Do this every week //sun ///sat ////weekly",
+            "Start this every Monday ///monday ////daily",
+            "These should not become tags because no space before the slash: before/during/after"
+        };
+        
+        for (String title : titles)
+        {
+            TaskTokens taskTokens = new TaskTokens(title);
+            System.out.printf("%s : %s\n", title, taskTokens);
+        }
+    }
+}
@@ -1,14 +1,14 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.domain;
-
-/**
- * An authenticated user. 
- * You must pass one of these to all methods of TaskService (once you have authenticated).
- */
-public interface User
-{
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.domain;
+
+/**
+ * An authenticated user. 
+ * You must pass one of these to all methods of TaskService (once you have authenticated).
+ */
+public interface User
+{
+}
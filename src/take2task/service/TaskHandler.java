@@ -0,0 +1,24 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service;
+
+import take2task.domain.Task;
+
+/**
+ * Receives tasks one at a time, as they are downloaded from the task service,
+ * so that they can be processed without holding every task in memory at once.
+ */
+public interface TaskHandler
+{
+    /**
+     * Handle the next task. The task already has its available contexts and folders set.
+     *
+     * @param task  The task.
+     *
+     * @throws TaskServiceException  To stop the download.
+     */
+    public abstract void handle(Task task) throws TaskServiceException;
+}
@@ -1,81 +1,189 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.service;
-
-import take2task.domain.Task;
-import take2task.domain.User;
-
-
-/**
- * All access to the underlying task service is via methods on this interface.
- */
-public interface TaskService
-{
-    public static final String FILE_SYSTEM_FOLDER_NAME = ".t2t";
-    
-    /**
-     * Ping the underlying task service.
-     * 
-     * @return true if the task service is available, otherwise false.
-     */
-    public abstract boolean ping();
-    
-    /**
-     * Authenticate to the underlying task service. 
-     * 
-     * @param userId  Task service username or user id.
-     * @param password Task service password.
-     * 
-     * @return An object, representing an authenticated user, 
-     *         which must be passed to all other methods on the interface.
-     * 
-     * @throws TaskServiceException  On any error.
-     */
-    public abstract User authenticate(String userId, String password)
-            throws TaskServiceException;
-
-    /**
-     * Return all tasks from the underlying task service for the given user.
-     * 
-     * @param user An authenticated user.
-     * 
-     * @throws TaskServiceException  On any error.
-     */
-    public abstract Task[] getAllTasks(User user) throws TaskServiceException;
-
-    /**
-     * Return tasks from the underlying task service that have been modified since the
-     * last time we fetched tasks or updated tasks. Do this for the given user.
-     * 
-     * @param user An authenticated user.
-     * 
-     * @throws TaskServiceException  On any error.
-     */
-    public abstract Task[] getModifiedTasks(User user) throws TaskServiceException;
-
-    /**
-     * Update the given tasks back to the underlying task service for the given user.
-     * 
-     * @param user An authenticated user.
-     * @param tasks The tasks to update back to the server.
-     * 
-     * @return The number of tasks that were update by the task service.
-     * 
-     * @throws TaskServiceException  On any error.
-     */
-    public abstract int updateTasks(User user, Task[] tasks) throws TaskServiceException;
-
-    /**
-     * Delete all completed tasks for the given user.
-     * 
-     * @param user An authenticated user.
-     * 
-     * @return The number of tasks that were deleted by the task service.
-     * 
-     * @throws TaskServiceException  On any error.
-     */
-    public abstract int deleteCompletedTasks(User user) throws TaskServiceException;
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service;
+
+import take2task.domain.Task;
+import take2task.domain.Timestamp;
+import take2task.domain.User;
+
+
+/**
+ * All access to the underlying task service is via methods on this interface.
+ */
+public interface TaskService
+{
+    public static final String FILE_SYSTEM_FOLDER_NAME = ".t2t";
+    
+    /**
+     * Ping the underlying task service.
+     * 
+     * @return true if the task service is available, otherwise false.
+     */
+    public abstract boolean ping();
+    
+    /**
+     * Authenticate to the underlying task service. 
+     * 
+     * @param userId  Task service username or user id.
+     * @param password Task service password.
+     * 
+     * @return An object, representing an authenticated user, 
+     *         which must be passed to all other methods on the interface.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract User authenticate(String userId, String password)
+            throws TaskServiceException;
+
+    /**
+     * Start a processing cycle for the given user. Fetch what we need to know about the 
+     * user's account to decide what to do this cycle (for example, whether any tasks 
+     * have changed), and reuse it for every call on this interface until the cycle ends.
+     * Authenticating starts a cycle as well.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @throws TaskServiceException  On any error, including the task service being unavailable.
+     */
+    public abstract void startCycle(User user) throws TaskServiceException;
+    
+    /**
+     * End the processing cycle for the given user. Calls on this interface after this
+     * will fetch fresh account details every time, until the next cycle starts.
+     * 
+     * @param user An authenticated user, or null (in which case this does nothing).
+     */
+    public abstract void endCycle(User user);
+
+    /**
+     * Return all tasks from the underlying task service for the given user.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract Task[] getAllTasks(User user) throws TaskServiceException;
+
+    /**
+     * Return tasks from the underlying task service that have been modified since the
+     * last time we fetched tasks or updated tasks. Do this for the given user.
+     * Tasks whose only change is our own update are left out.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract Task[] getModifiedTasks(User user) throws TaskServiceException;
+
+    /**
+     * Download all tasks from the underlying task service for the given user,
+     * handing each one to the given handler as soon as it has been downloaded.
+     * A big download may be split into pages that are downloaded at the same time,
+     * so the tasks may not arrive in order, but each task is handed over exactly once,
+     * and the handler is never called by more than one thread at a time.
+     * 
+     * @param user An authenticated user.
+     * @param handler Receives each task.
+     * 
+     * @return The number of tasks handed to the handler.
+     * 
+     * @throws TaskServiceException  On any error, including any error thrown by the handler.
+     */
+    public abstract int getAllTasks(User user, TaskHandler handler) throws TaskServiceException;
+
+    /**
+     * Download tasks from the underlying task service that have been modified since the
+     * last time we fetched tasks or updated tasks, handing each one to the given handler 
+     * as soon as it has been downloaded. Do this for the given user.
+     * Tasks whose only change is our own update are left out.
+     * 
+     * @param user An authenticated user.
+     * @param handler Receives each task, in the order the task service returned them.
+     * 
+     * @return The number of tasks handed to the handler.
+     * 
+     * @throws TaskServiceException  On any error, including any error thrown by the handler.
+     */
+    public abstract int getModifiedTasks(User user, TaskHandler handler) throws TaskServiceException;
+
+    /**
+     * Check that we haven't missed any changes to the given user's tasks, such as tasks modified
+     * while we weren't looking, or completed or deleted without us noticing. Download the tasks
+     * that have changed, handing each one to the given handler as soon as it has been downloaded.
+     * Only some task services can do this without downloading all the tasks.
+     * 
+     * @param user An authenticated user.
+     * @param handler Receives each changed task.
+     * 
+     * @return The number of tasks handed to the handler.
+     * 
+     * @throws TaskServiceException  On any error, including any error thrown by the handler.
+     */
+    public abstract int reconcileTasks(User user, TaskHandler handler) throws TaskServiceException;
+
+    /**
+     * Return the given user's tasks as they were when last downloaded or updated, without
+     * downloading them again. Return none if the underlying task service doesn't keep them.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract Task[] getStoredTasks(User user) throws TaskServiceException;
+
+    /**
+     * Update the given tasks back to the underlying task service for the given user.
+     * 
+     * @param user An authenticated user.
+     * @param tasks The tasks to update back to the server.
+     * 
+     * @return The number of tasks that were update by the task service.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract int updateTasks(User user, Task[] tasks) throws TaskServiceException;
+
+    /**
+     * Return how many tasks the task service currently sends in one update request
+     * for the given user. Callers can hand over modified tasks in batches of this size,
+     * so that updates can start before all the tasks have been modified.
+     * 
+     * @param user An authenticated user.
+     */
+    public abstract int getUpdateBatchSize(User user);
+
+    /**
+     * Delete all completed tasks for the given user.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @return The number of tasks that were deleted by the task service.
+     * 
+     * @throws TaskServiceException  On any error.
+     */
+    public abstract int deleteCompletedTasks(User user) throws TaskServiceException;
+
+    /**
+     * Return when all the given user's tasks were last checked, by downloading them all or by
+     * reconciling them. Remembered between runs of the program, where the underlying task service
+     * allows. This does not contact the task service.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @return When all the tasks were last checked, or the start of the "epoch" if never.
+     */
+    public abstract Timestamp getLastTaskCheckTimestamp(User user);
+
+    /**
+     * Return when the given user's tasks were last edited, as at the last time we heard 
+     * from the underlying task service. This does not contact the task service.
+     * 
+     * @param user An authenticated user.
+     * 
+     * @return When the tasks were last edited, or the start of the "epoch" if we don't know.
+     */
+    public abstract Timestamp getLastActivityTimestamp(User user);
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+/**
+ * Learns how many tasks to send to Toodledo in one update request, in the same way that
+ * TCP learns how much data to send at once: additive increase, multiplicative decrease.
+ * 
+ * While requests succeed quickly, the batch size grows a little at a time. When a request 
+ * fails because it was too big (HTTP 414, a timeout, or Toodledo only updating some 
+ * of the tasks), the batch size is halved. One of these is kept for each user, so
+ * what we learn about one account's notes and server behaviour carries over between cycles.
+ */
+public class BatchSizeController
+{
+    private static final int MINIMUM_BATCH_SIZE = 1;
+    private static final int INITIAL_BATCH_SIZE = 20;
+    private static final int ADDITIVE_INCREASE = 2;
+    
+    /**
+     * A request that takes longer than this is not "quick", so we don't grow the batch size after it.
+     */
+    private static final long QUICK_RESPONSE_MILLIS = 3000;
+
+    private final int maximumBatchSize;
+    private int batchSize;
+    
+    /**
+     * Constructor.
+     * 
+     * @param maximumBatchSize  The batch size will never grow past this.
+     */
+    public BatchSizeController(int maximumBatchSize)
+    {
+        this.maximumBatchSize = maximumBatchSize;
+        this.batchSize = Math.min(INITIAL_BATCH_SIZE, maximumBatchSize);
+    }
+    
+    /**
+     * Return the number of tasks to send in the next update request.
+     */
+    public synchronized int getBatchSize()
+    {
+        return batchSize;
+    }
+    
+    /**
+     * Record that an update request succeeded.
+     * 
+     * @param elapsedMillis  How long the request took.
+     */
+    public synchronized void succeeded(long elapsedMillis)
+    {
+        if (elapsedMillis < QUICK_RESPONSE_MILLIS)
+        {
+            batchSize = Math.min(batchSize + ADDITIVE_INCREASE, maximumBatchSize);
+        }
+    }
+    
+    /**
+     * Record that an update request failed, or only partly succeeded, because it was too big.
+     * 
+     * @return true if the batch size was reduced, 
+     *         false if it was already as small as it can get.
+     */
+    public synchronized boolean failed()
+    {
+        if (batchSize <= MINIMUM_BATCH_SIZE)
+        {
+            return false;
+        }
+        batchSize = Math.max(batchSize / 2, MINIMUM_BATCH_SIZE);
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.util.logging.Logger;
+
+import take2task.service.TaskServiceException;
+
+/**
+ * Stops us hammering Toodledo while it is down. One of these is kept for each user.
+ *
+ * While calls are working, the breaker is closed, and every call is let through.
+ * After several calls in a row have failed in a way that suggests Toodledo is unavailable
+ * (even after retrying), the breaker opens, and calls fail straight away without contacting
+ * Toodledo. Once the breaker has been open for a while, one call is let through as a trial.
+ * If it works, the breaker closes again; if not, the breaker stays open for twice as long.
+ */
+public class CircuitBreaker
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    // Number of failed calls in a row that opens the breaker.
+    private static final int FAILURE_THRESHOLD = 5;
+
+    // How long the breaker stays open the first time, and at most.
+    private static final long MINIMUM_OPEN_MILLIS = 60 * 1000;
+    private static final long MAXIMUM_OPEN_MILLIS = 30 * 60 * 1000;
+
+    private final String userId;
+    private int failureCount;
+    private long openMillis = MINIMUM_OPEN_MILLIS;
+    private long openUntilMillis; // zero while closed
+    private boolean isTrialRunning;
+
+    /**
+     * Constructor.
+     *
+     * @param userId  The user whose calls this breaker guards. Only used in messages.
+     */
+    public CircuitBreaker(String userId)
+    {
+        this.userId = userId;
+    }
+
+    /**
+     * Check that a call may be made.
+     *
+     * @throws TaskServiceException  If the breaker is open, so the call must not be made.
+     */
+    public synchronized void checkClosed() throws TaskServiceException
+    {
+        if (openUntilMillis == 0)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= openUntilMillis && !isTrialRunning)
+        {
+            // Let one call through, to see if Toodledo is back.
+            isTrialRunning = true;
+            return;
+        }
+        throw new TaskServiceException(String.format("Not calling Toodledo for %s, because it has been unavailable. " +
+                                                     "Trying again in %d seconds.",
+                                                     userId, Math.max(0, openUntilMillis - now) / 1000));
+    }
+
+    /**
+     * Record that a call worked.
+     */
+    public synchronized void succeeded()
+    {
+        if (openUntilMillis != 0)
+        {
+            logger.info(String.format("Toodledo is available again for %s.", userId));
+        }
+        failureCount = 0;
+        openMillis = MINIMUM_OPEN_MILLIS;
+        openUntilMillis = 0;
+        isTrialRunning = false;
+    }
+
+    /**
+     * Record that a call failed in a way that suggests Toodledo is unavailable.
+     */
+    public synchronized void failed()
+    {
+        failureCount++;
+        if (isTrialRunning)
+        {
+            // The trial call failed. Stay open, for longer this time.
+            isTrialRunning = false;
+            openMillis = Math.min(openMillis * 2, MAXIMUM_OPEN_MILLIS);
+            open();
+        }
+        else if (openUntilMillis == 0 && failureCount >= FAILURE_THRESHOLD)
+        {
+            open();
+        }
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Open the breaker.
+     */
+    private void open()
+    {
+        openUntilMillis = System.currentTimeMillis() + openMillis;
+        logger.warning(String.format("Toodledo looks unavailable for %s. Not calling it for %d seconds.",
+                                     userId, openMillis / 1000));
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+
+import take2task.domain.Timestamp;
+import take2task.service.TaskServiceException;
+import take2task.service.toodledo.domain.Id;
+import take2task.service.toodledo.domain.TaskListInfo;
+import take2task.service.toodledo.domain.ToodledoUser;
+
+/**
+ * Deletes a user's completed tasks from Toodledo.
+ *
+ * Only the ids of completed tasks are downloaded, a page at a time, and only of those completed
+ * since the last sweep that downloaded and deleted them all. The tasks are deleted a chunk at a time, several chunks at once,
+ * and each id that Toodledo doesn't say it deleted is reported. Sweeps are not made every cycle,
+ * because nobody minds a completed task hanging around for a few more minutes.
+ *
+ * The sweeper holds no per-account state (that lives in the ToodledoUser objects),
+ * so one instance can safely be shared by all the accounts being processed.
+ */
+class CompletedTaskSweeper
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    private static final Gson gson = new Gson();
+
+    // Minimum time between sweeps for a user.
+    private static final long SWEEP_INTERVAL_MILLIS = 15 * 60 * 1000;
+
+    // Toodledo returns a maximum of 1000 tasks in one request.
+    private static final int PAGE_SIZE = 1000;
+
+    // Toodledo says that you can delete a maximum of 50 tasks in one request.
+    private static final int MAXIMUM_DELETE_COUNT = 50;
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param executor  Used to delete several chunks of tasks at once.
+     */
+    CompletedTaskSweeper(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Delete the user's completed tasks, if it is time to.
+     *
+     * @param user  The user whose tasks to delete.
+     * @param lastEditedTaskTimestamp  When the user's tasks were last edited.
+     *
+     * @return The number of tasks deleted.
+     *
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    int sweep(ToodledoUser user, Timestamp lastEditedTaskTimestamp) throws ToodledoException, TaskServiceException
+    {
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis - user.getLastCompletedSweepAttemptMillis() < SWEEP_INTERVAL_MILLIS)
+        {
+            return 0;
+        }
+        user.setLastCompletedSweepAttemptMillis(nowMillis);
+
+        // A task can only have been completed if it has been edited. So if no tasks have
+        // been edited since we last looked for completed tasks, don't download them again.
+        Timestamp sweepTimestamp = new Timestamp(); // now
+        Timestamp lastSweepTimestamp = user.getLastCompletedSweepTimestamp();
+        if (lastEditedTaskTimestamp.getValue() < lastSweepTimestamp.getValue())
+        {
+            logger.finer("No tasks edited since we last looked for completed tasks.");
+            return 0;
+        }
+
+        Set<Long> completedIds = new LinkedHashSet<Long>();
+        int total = getCompletedTaskIds(user, lastSweepTimestamp, completedIds);
+        List<Long> ids = new ArrayList<Long>(completedIds);
+
+        // If tasks were completed or deleted while we were paging through them, the pages
+        // might have shifted under us, so we might have missed some.
+        boolean isAllFetched = (ids.size() >= total);
+        if (!isAllFetched)
+        {
+            logger.fine(String.format("Toodledo has %d completed tasks, but we only got %d of them.",
+                                      total, ids.size()));
+        }
+        if (ids.isEmpty())
+        {
+            logger.finer("No completed tasks to delete.");
+            if (isAllFetched)
+            {
+                user.setLastCompletedSweepTimestamp(sweepTimestamp);
+            }
+            return 0;
+        }
+
+        // Delete the tasks a chunk at a time, all the chunks at once.
+        List<Future<Integer>> chunks = new ArrayList<Future<Integer>>();
+        for (int chunkStart = 0; chunkStart < ids.size(); chunkStart += MAXIMUM_DELETE_COUNT)
+        {
+            int chunkEnd = Math.min(ids.size(), chunkStart + MAXIMUM_DELETE_COUNT);
+            chunks.add(executor.submit(new DeleteChunk(user, ids.subList(chunkStart, chunkEnd))));
+        }
+
+        // Wait for all the chunks, even if one fails, so that none is still running once we return.
+        int deletedCount = 0;
+        TaskServiceException failure = null;
+        for (Future<Integer> chunk : chunks)
+        {
+            try
+            {
+                deletedCount += getResult(chunk);
+            }
+            catch (TaskServiceException e)
+            {
+                if (failure == null)
+                {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+
+        if (deletedCount != ids.size())
+        {
+            logger.warning(String.format("We asked Toodledo to delete %d tasks, but it only deleted %d tasks.",
+                                         ids.size(), deletedCount));
+        }
+        else if (isAllFetched)
+        {
+            // Only skip these tasks next time if we got rid of them all.
+            user.setLastCompletedSweepTimestamp(sweepTimestamp);
+        }
+        return deletedCount;
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Download the ids of the user's completed tasks, modified after the given time,
+     * a page at a time.
+     *
+     * @param user  The user whose tasks to download.
+     * @param modifiedAfter  Only download tasks modified after this time.
+     * @param ids  Where to add the ids.
+     *
+     * @return The number of completed tasks that Toodledo said there were.
+     */
+    private static int getCompletedTaskIds(final ToodledoUser user, final Timestamp modifiedAfter, final Set<Long> ids)
+        throws ToodledoException, TaskServiceException
+    {
+        // A page might be downloaded again, so ignore ids we already have.
+        final ObjectFetcher.ElementHandler<Id> handler = new ObjectFetcher.ElementHandler<Id>()
+        {
+            public void handle(Id id)
+            {
+                ids.add(id.getValue());
+            }
+        };
+
+        int total = 0;
+        int start = 0;
+        while (true)
+        {
+            // Without a fields parameter, Toodledo only returns the few fields that it always returns.
+            // Of those, we only read the id.
+            final int pageStart = start;
+            TaskListInfo info = RetryingCaller.read(user, new Callable<TaskListInfo>()
+            {
+                public TaskListInfo call() throws Exception
+                {
+                    String request = ObjectFetcher.TOODLEDO_API_URL + "tasks/get.php?key=" + user.getAuthenticationKey() +
+                                     ";comp=1;modafter=" + modifiedAfter.getValue() +
+                                     ";start=" + pageStart + ";num=" + PAGE_SIZE;
+                    return ObjectFetcher.requestArray(request, TaskListInfo.class, Id.class, handler, user.getDeadline(), true);
+                }
+            });
+            if (info == null)
+            {
+                return total;
+            }
+            total = Math.max(total, info.getTotal());
+            start += info.getCount();
+
+            // A short page is the last one.
+            if (info.getCount() < PAGE_SIZE || start >= total)
+            {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * Wait for the given background request, and return its result.
+     * Rethrow any exception that the request threw.
+     */
+    private static <T> T getResult(Future<T> future) throws TaskServiceException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while waiting for Toodledo.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TaskServiceException)
+            {
+                throw (TaskServiceException) e.getCause();
+            }
+            throw new TaskServiceException(e.getCause());
+        }
+    }
+
+    // ---------- Private helper classes ----------
+
+    /**
+     * Deletes one chunk of tasks, in a single request.
+     */
+    private static class DeleteChunk implements Callable<Integer>
+    {
+        private final ToodledoUser user;
+        private final List<Long> ids;
+
+        /**
+         * Constructor.
+         *
+         * @param user  The user whose tasks they are.
+         * @param ids  The ids of the tasks to delete.
+         */
+        DeleteChunk(ToodledoUser user, List<Long> ids)
+        {
+            this.user = user;
+            this.ids = ids;
+        }
+
+        /**
+         * Delete the tasks.
+         *
+         * @return The number of tasks that Toodledo deleted.
+         */
+        public Integer call() throws Exception
+        {
+            final String tasksParameter = "&tasks=" + URLEncoder.encode(gson.toJson(ids), "UTF-8");
+            Id[] deletedIds = RetryingCaller.write(user, new Callable<Id[]>()
+            {
+                public Id[] call() throws Exception
+                {
+                    String deleteRequest = ObjectFetcher.TOODLEDO_API_URL + "tasks/delete.php";
+                    String body = "key=" + user.getAuthenticationKey() + tasksParameter;
+                    return ObjectFetcher.post(deleteRequest, body, Id[].class, user.getDeadline());
+                }
+            });
+
+            // Toodledo returns the id of each task it deleted, and an error in place of each one it didn't.
+            Set<Long> notDeleted = new HashSet<Long>(ids);
+            for (Id id : deletedIds)
+            {
+                if (notDeleted.remove(id.getValue()))
+                {
+                    user.getTaskStore().remove(id.getValue());
+                }
+            }
+            if (!notDeleted.isEmpty())
+            {
+                logger.warning(String.format("Toodledo didn't delete the completed tasks with these ids: %s", notDeleted));
+            }
+            return ids.size() - notDeleted.size();
+        }
+    } // end of class DeleteChunk
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+/**
+ * The time by which a request to Toodledo, or a whole processing cycle, must have finished.
+ * HTTP requests take their connect and read timeouts from it, so that one stalled connection
+ * can't hold up a cycle for ever. Deadlines never change, so are safe to share between threads.
+ */
+public class Deadline
+{
+    /**
+     * Time allowed for a request made outside a processing cycle.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    private final long endMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param timeoutMillis  How long from now until the deadline.
+     */
+    public Deadline(long timeoutMillis)
+    {
+        this.endMillis = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /**
+     * Return how long is left until the deadline. Zero if it has passed.
+     */
+    public long getRemainingMillis()
+    {
+        return Math.max(0, endMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Return true if the deadline has passed.
+     */
+    public boolean hasPassed()
+    {
+        return System.currentTimeMillis() >= endMillis;
+    }
+}
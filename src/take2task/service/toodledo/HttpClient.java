@@ -0,0 +1,565 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP layer underneath ObjectFetcher. All HTTP requests to Toodledo go through here.
+ *
+ * Connections are kept alive and reused, rather than opening a new one for every request.
+ * Java's HttpURLConnection already keeps a pool of idle connections, but only puts
+ * a connection back in the pool once its response has been read right to the end and
+ * closed. So every response is drained and closed here, even when the reader stops early
+ * or the server returned an error. The pool holds up to MAXIMUM_CONNECTIONS_PER_HOST idle
+ * connections to each host, and we never have more requests than that in flight to one host,
+ * so that many accounts being processed at once don't hammer Toodledo.
+ *
+ * Responses are asked for gzip or deflate compression (task notes compress very well),
+ * and are always decoded as UTF-8, whatever the platform's default character set.
+ *
+ * Every request has a deadline, which sets its connect and read timeouts, so that a stalled
+ * connection can't hang a processing cycle. GET requests that are safe to make twice can be
+ * hedged: if one takes longer to answer than 95% of recent requests to the same endpoint,
+ * the same request is sent again, and whichever answers first is used.
+ */
+public class HttpClient
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    /**
+     * Maximum number of requests in flight to one host at the same time,
+     * and maximum number of idle connections kept open to one host.
+     */
+    public static final int MAXIMUM_CONNECTIONS_PER_HOST = 8;
+
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // HTTP status codes from here up are errors.
+    private static final int HTTP_ERROR_STATUS_START = 400;
+
+    // Timeouts are the time left until the deadline, but no more than these.
+    private static final long MAXIMUM_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final long MAXIMUM_READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    // A hedged request is sent again if it takes longer to answer than this percentage of recent requests.
+    private static final int HEDGE_PERCENTILE = 95;
+
+    // How long recent GET requests to each endpoint took to answer, keyed by host and path.
+    private static final ConcurrentMap<String, LatencyTracker> latencyTrackers = 
+        new ConcurrentHashMap<String, LatencyTracker>();
+
+    // Sends the requests of a hedged GET. Daemon threads, so that they never keep the program running.
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "take2task-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Permits for requests to each host, keyed by host name.
+    private static final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    static
+    {
+        // Size the JDK's pool of idle connections to match our limit on requests in flight,
+        // unless the user has already chosen a size on the command line.
+        System.setProperty("http.keepAlive", "true");
+        if (System.getProperty("http.maxConnections") == null)
+        {
+            System.setProperty("http.maxConnections", Integer.toString(MAXIMUM_CONNECTIONS_PER_HOST));
+        }
+    }
+
+    /**
+     * Private constructor. This is a utility class with only static methods.
+     */
+    private HttpClient()
+    {
+    }
+
+    /**
+     * Make an HTTP GET request.
+     *
+     * @param url  The URL to get, including any parameters.
+     * @param deadline  When the request must have finished by.
+     * @param isHedged  True to send a second, identical request if the first one takes longer
+     *                  to answer than nearly all recent requests to the same endpoint, and use
+     *                  whichever answers first. Only for requests that are safe to make twice.
+     *
+     * @return  A reader for the body of the response. The caller must close it
+     *          (which lets the connection be reused).
+     *
+     * @throws MalformedURLException  If the URL is malformed.
+     * @throws HttpStatusException  If the web server returned an HTTP error status.
+     * @throws SocketTimeoutException  If the deadline passed.
+     * @throws IOException  On any other I/O error.
+     */
+    public static Reader get(String url, Deadline deadline, boolean isHedged) 
+        throws MalformedURLException, HttpStatusException, SocketTimeoutException, IOException
+    {
+        URL requestUrl = new URL(url);
+        if (isHedged)
+        {
+            long hedgeDelayMillis = getLatencyTracker(requestUrl).getPercentileMillis(HEDGE_PERCENTILE);
+            if (hedgeDelayMillis >= 0 && hedgeDelayMillis < deadline.getRemainingMillis())
+            {
+                return sendHedged(requestUrl, deadline, hedgeDelayMillis);
+            }
+        }
+        return send(requestUrl, null, deadline);
+    }
+
+    /**
+     * Make an HTTP POST request, sending form data.
+     *
+     * @param url  The URL to post to, without any parameters.
+     * @param formData  The parameters of the request, already URL encoded.
+     * @param deadline  When the request must have finished by.
+     *
+     * @return  A reader for the body of the response. The caller must close it
+     *          (which lets the connection be reused).
+     *
+     * @throws MalformedURLException  If the URL is malformed.
+     * @throws HttpStatusException  If the web server returned an HTTP error status.
+     * @throws SocketTimeoutException  If the deadline passed.
+     * @throws IOException  On any other I/O error.
+     */
+    public static Reader post(String url, String formData, Deadline deadline) 
+        throws MalformedURLException, HttpStatusException, SocketTimeoutException, IOException
+    {
+        return send(new URL(url), formData, deadline);
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Send an HTTP request, and return a reader for the response.
+     *
+     * @param formData  Form data to POST, or null to GET.
+     */
+    private static Reader send(URL requestUrl, String formData, Deadline deadline) 
+        throws HttpStatusException, SocketTimeoutException, IOException
+    {
+        Semaphore permits = getPermits(requestUrl.getHost());
+        try
+        {
+            if (!permits.tryAcquire(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS))
+            {
+                throw new SocketTimeoutException("Deadline passed while waiting to connect to " + requestUrl.getHost());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to connect to " + requestUrl.getHost());
+        }
+
+        // From here on, the permit is released when the response stream is closed.
+        ResponseStream response = null;
+        try
+        {
+            long remainingMillis = deadline.getRemainingMillis();
+            if (remainingMillis <= 0)
+            {
+                throw new SocketTimeoutException("Deadline passed before connecting to " + requestUrl.getHost());
+            }
+            
+            long startMillis = System.currentTimeMillis();
+            HttpURLConnection connection = (HttpURLConnection) requestUrl.openConnection();
+            connection.setConnectTimeout((int) Math.min(remainingMillis, MAXIMUM_CONNECT_TIMEOUT_MILLIS));
+            connection.setReadTimeout((int) Math.min(remainingMillis, MAXIMUM_READ_TIMEOUT_MILLIS));
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            connection.setRequestProperty("Accept-Charset", CHARSET);
+            if (formData != null)
+            {
+                writeFormData(connection, formData);
+            }
+
+            int statusCode = connection.getResponseCode();
+            if (formData == null)
+            {
+                getLatencyTracker(requestUrl).record(System.currentTimeMillis() - startMillis);
+            }
+            if (statusCode >= HTTP_ERROR_STATUS_START)
+            {
+                // Read the error page, so that the connection can still be reused.
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null)
+                {
+                    new ResponseStream(errorStream, connection, null, deadline).close();
+                }
+                throw new HttpStatusException(statusCode, connection.getResponseMessage());
+            }
+
+            response = new ResponseStream(connection.getInputStream(), connection, permits, deadline);
+            return new BufferedReader(new InputStreamReader(decode(response, connection.getContentEncoding()), CHARSET),
+                                      BUFFER_SIZE);
+        }
+        catch (IOException e)
+        {
+            if (response != null)
+            {
+                response.close();
+            }
+            else
+            {
+                permits.release();
+            }
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            if (response != null)
+            {
+                response.close();
+            }
+            else
+            {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Send an HTTP GET request. If it hasn't answered within the given delay, send it again,
+     * and return a reader for whichever answers first. The other one is closed when it answers.
+     */
+    private static Reader sendHedged(final URL requestUrl, final Deadline deadline, long hedgeDelayMillis) 
+        throws HttpStatusException, SocketTimeoutException, IOException
+    {
+        Callable<Reader> request = new Callable<Reader>()
+        {
+            public Reader call() throws IOException
+            {
+                return send(requestUrl, null, deadline);
+            }
+        };
+        
+        CompletionService<Reader> attempts = new ExecutorCompletionService<Reader>(hedgeExecutor);
+        List<Future<Reader>> unfinishedAttempts = new ArrayList<Future<Reader>>();
+        unfinishedAttempts.add(attempts.submit(request));
+        try
+        {
+            Future<Reader> attempt = attempts.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+            if (attempt == null)
+            {
+                logger.finer("Request is slow to answer, so sending it again: " + requestUrl.getPath());
+                unfinishedAttempts.add(attempts.submit(request));
+            }
+            
+            // Return the first attempt that works. If they all fail, throw the last failure.
+            while (true)
+            {
+                if (attempt == null)
+                {
+                    attempt = attempts.take();
+                }
+                unfinishedAttempts.remove(attempt);
+                try
+                {
+                    return attempt.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (unfinishedAttempts.isEmpty())
+                    {
+                        if (e.getCause() instanceof IOException)
+                        {
+                            throw (IOException) e.getCause();
+                        }
+                        throw new IOException(e.getCause());
+                    }
+                    attempt = null;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + requestUrl.getHost());
+        }
+        finally
+        {
+            for (Future<Reader> unfinishedAttempt : unfinishedAttempts)
+            {
+                closeWhenDone(unfinishedAttempt);
+            }
+        }
+    }
+
+    /**
+     * Close the response to the given request, once it answers, in the background.
+     */
+    private static void closeWhenDone(final Future<Reader> attempt)
+    {
+        hedgeExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    attempt.get().close();
+                }
+                catch (Exception e)
+                {
+                    // We aren't using this response, so don't care if it failed.
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the latency tracker for the endpoint that the given URL is a request to.
+     */
+    private static LatencyTracker getLatencyTracker(URL requestUrl)
+    {
+        String endpoint = requestUrl.getHost() + requestUrl.getPath();
+        LatencyTracker tracker = latencyTrackers.get(endpoint);
+        if (tracker == null)
+        {
+            LatencyTracker newTracker = new LatencyTracker();
+            tracker = latencyTrackers.putIfAbsent(endpoint, newTracker);
+            if (tracker == null)
+            {
+                tracker = newTracker;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Return the permits for requests to the given host, creating them if this is the first request.
+     */
+    private static Semaphore getPermits(String host)
+    {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null)
+        {
+            Semaphore newPermits = new Semaphore(MAXIMUM_CONNECTIONS_PER_HOST, true);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null)
+            {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Write URL encoded form data as the body of a POST request.
+     */
+    private static void writeFormData(HttpURLConnection connection, String formData) throws IOException
+    {
+        byte[] body = formData.getBytes(CHARSET);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=" + CHARSET);
+
+        OutputStream out = connection.getOutputStream();
+        try
+        {
+            out.write(body);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Wrap the given response stream to undo any compression the server applied to it.
+     *
+     * @param contentEncoding  The Content-Encoding header of the response. Null if none.
+     */
+    private static InputStream decode(InputStream in, String contentEncoding) throws IOException
+    {
+        if ("gzip".equalsIgnoreCase(contentEncoding))
+        {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding))
+        {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    // ---------- Private helper classes ----------
+
+    /**
+     * The raw stream of an HTTP response. Closing it reads whatever is left of the response
+     * and throws it away, so that the connection goes back into the pool to be reused,
+     * and gives back the permit for the request.
+     *
+     * A response is only read to the end if that can be done quickly: if reading it hasn't
+     * failed, the deadline hasn't passed, and there isn't much of it left. Otherwise the
+     * connection is dropped instead, so that a response that nobody wants any more, and that
+     * trickles in, can't hold on to a thread and a permit until the server finishes sending it.
+     */
+    private static class ResponseStream extends FilterInputStream
+    {
+        // Most of a response to read and throw away, rather than drop the connection.
+        private static final int MAXIMUM_DRAIN_BYTES = 64 * 1024;
+
+        private HttpURLConnection connection;
+        private Semaphore permits;
+        private Deadline deadline;
+        private boolean isFailed;
+        private boolean isClosed;
+
+        /**
+         * Constructor.
+         *
+         * @param in  The raw stream of the response.
+         * @param connection  The connection the response came on.
+         * @param permits  The permits to give one back to when closed. Null if none.
+         * @param deadline  When the whole response must have been read by.
+         */
+        ResponseStream(InputStream in, HttpURLConnection connection, Semaphore permits, Deadline deadline)
+        {
+            super(in);
+            this.connection = connection;
+            this.permits = permits;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            try
+            {
+                checkDeadline();
+                return super.read();
+            }
+            catch (IOException e)
+            {
+                isFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            try
+            {
+                checkDeadline();
+                return super.read(buffer, offset, length);
+            }
+            catch (IOException e)
+            {
+                isFailed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * The read timeout only limits each read, so a response that trickles in could
+         * take for ever. Stop reading it once the deadline has passed.
+         */
+        private void checkDeadline() throws SocketTimeoutException
+        {
+            if (deadline.hasPassed())
+            {
+                throw new SocketTimeoutException("Deadline passed while reading the response.");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            if (isClosed)
+            {
+                return;
+            }
+            isClosed = true;
+            try
+            {
+                if (!isFailed && drain())
+                {
+                    in.close();
+                }
+                else
+                {
+                    connection.disconnect();
+                }
+            }
+            finally
+            {
+                if (permits != null)
+                {
+                    permits.release();
+                }
+            }
+        }
+
+        /**
+         * Read the rest of the response and throw it away, as long as the deadline
+         * hasn't passed and there isn't too much of it.
+         *
+         * @return true if the whole response was read, false if we gave up on it.
+         */
+        private boolean drain()
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long drainedBytes = 0;
+            try
+            {
+                while (!deadline.hasPassed() && drainedBytes <= MAXIMUM_DRAIN_BYTES)
+                {
+                    int count = in.read(buffer);
+                    if (count == -1)
+                    {
+                        return true;
+                    }
+                    drainedBytes += count;
+                }
+            }
+            catch (IOException e)
+            {
+                // Give up on the response.
+            }
+            return false;
+        }
+    } // end of class ResponseStream
+}
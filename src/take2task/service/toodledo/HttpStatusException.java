@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.IOException;
+
+/**
+ * An HTTP error status (4xx or 5xx) returned by Toodledo's web server, 
+ * as opposed to an error message returned by the Toodledo API (which is a ToodledoException).
+ */
+@SuppressWarnings("serial")
+public class HttpStatusException extends IOException
+{
+    /**
+     * HTTP status for "Request-URI Too Long".
+     */
+    public static final int REQUEST_URI_TOO_LONG = 414;
+    
+    /**
+     * HTTP status for "Request Entity Too Large".
+     */
+    public static final int REQUEST_ENTITY_TOO_LARGE = 413;
+    
+    private int statusCode;
+
+    /**
+     * Constructor.
+     * 
+     * @param statusCode  The HTTP status code, for example 414.
+     * @param message  The HTTP status message, for example "Request-URI Too Long".
+     */
+    public HttpStatusException(int statusCode, String message)
+    {
+        super(String.format("HTTP error %d : %s", statusCode, message));
+        this.statusCode = statusCode;
+    }
+    
+    /**
+     * Return the HTTP status code.
+     */
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+}
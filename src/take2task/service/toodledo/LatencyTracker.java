@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.util.Arrays;
+
+/**
+ * Remembers how long the most recent requests to one Toodledo endpoint took to answer,
+ * so that we can tell when a request is taking unusually long.
+ */
+class LatencyTracker
+{
+    // Number of recent requests to remember.
+    private static final int SAMPLE_COUNT = 100;
+
+    // Don't trust the percentiles until we have seen at least this many requests.
+    private static final int MINIMUM_SAMPLE_COUNT = 20;
+
+    private final long[] samples = new long[SAMPLE_COUNT];
+    private int sampleCount;
+    private int nextSample;
+
+    /**
+     * Record how long a request took to answer.
+     */
+    synchronized void record(long elapsedMillis)
+    {
+        samples[nextSample] = elapsedMillis;
+        nextSample = (nextSample + 1) % SAMPLE_COUNT;
+        sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+    }
+
+    /**
+     * Return the time within which the given percentage of recent requests answered,
+     * for example 95 for the 95th percentile.
+     *
+     * @return The time, or -1 if we haven't seen enough requests to tell.
+     */
+    synchronized long getPercentileMillis(int percentile)
+    {
+        if (sampleCount < MINIMUM_SAMPLE_COUNT)
+        {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = Math.min(sampleCount - 1, (sampleCount * percentile + 99) / 100 - 1);
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -1,119 +1,255 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.service.toodledo;
-
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PushbackReader;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonParseException;
-
-/**
- * Utility methods used when communicating with Toodledo.
- */
-public class ObjectFetcher
-{
-    /**
-     * Start of the URL for all requests to Toodledo.
-     */
-    public static final String TOODLEDO_API_URL = "http://api.toodledo.com/2/";    
-
-    private static Gson gson = new Gson(); // GSON library object used to convert between JSON and Java objects.
-
-    /**
-     * Make a request to Toodledo, returning an object of the given type.
-     * 
-     * @param request The URL defining the request of Toodledo.
-     * @param classOfT  The class of the object to return.
-     * 
-     * @return  The object, of the specified class, encapsulating the data returned by Toodledo.
-     * 
-     * @throws MalformedURLException  If the request is a malformed URL.
-     * @throws ToodledoException  If Toodledo returned one of its defined error messages
-     *                            rather than the anticipated data.
-     * @throws IOException  On any I/O error communicating with Toodledo.
-     * @throws JsonParseException On any error parsing Toodledo JSON data.
-     */
-    public static <T> T request(String request, Class<T> classOfT) 
-        throws MalformedURLException, ToodledoException, IOException, JsonParseException
-    {
-        URL requestUrl = new URL(request);
-        URLConnection connection = requestUrl.openConnection();
-        PushbackReader json = new PushbackReader(new InputStreamReader(connection.getInputStream()), 
-                                                 ToodledoException.ERROR_START.length());
-        return convertFromJson(json, classOfT);
-    }
-
-    /**
-     * Convert the given stream of Toodledo JSON data to an object representation.
-     * 
-     * @param json  The Toodledo JSON data to convert. This method will always close
-     *              the reader before returning, so don't use it after the call.
-     * @param classOfT  The class of the object to return.
-     * 
-     * @return  An object of the specified class.
-     * 
-     * @throws ToodledoException  If the JSON stream was actually a Toodledo error message
-     *                            rather than the anticipated data.
-     * @throws IOException  On any I/O error.
-     * @throws JsonParseException On any error parsing the JSON data.
-     */
-    private static <T> T convertFromJson(PushbackReader json, Class<T> classOfT)
-        throws ToodledoException, IOException, JsonParseException
-    {
-        try
-        {    
-            // First check of the the JSON data is a Toodledo error message,
-            // rather than the data we expect.
-            checkIfErrorMessage(json);
-            
-            // It isn't a Toodledo error message (because a ToodledoException would 
-            // have been thrown if it was. Try to parse as the expected data. 
-            return gson.fromJson(json, classOfT);
-        }
-        finally
-        {
-            if (json != null)
-            {
-                json.close();
-            }
-        }
-    }
-    
-    /**
-     * Check if the given JSON data is a Toodledo error message.
-     * If it is, throw a ToodledoException encapsulating the error message.
-     * If it is not, just return.
-     * 
-     * @param json  The JSON data to read. 
-     *              This method never closes this reader, even if an exception is thrown.
-     *              It is always the caller's responsibility to close it.
-     *              
-     * @throws ToodledoException  If the JSON data was an error message. This exception contains the error message.
-     * @throws IOException  On any I/O error.
-     * @throws JsonParseException  On any error parsing the JSON data.
-     */
-    private static void checkIfErrorMessage(PushbackReader json) 
-        throws ToodledoException, IOException, JsonParseException
-    {
-        final int lookAheadLength = ToodledoException.ERROR_START.length();
-        char[] buffer = new char[lookAheadLength];
-        final int countRead = json.read(buffer, 0, lookAheadLength);
-        json.unread(buffer); // Set the reader back to the start of the JSON data.
-        if (countRead == lookAheadLength && ToodledoException.ERROR_START.equals(new String(buffer)))
-        {
-            // Yep. It is an error message. Convert the whole message from the JSON.
-            ToodledoException toodledoException = gson.fromJson(json, ToodledoException.class);
-            
-            // Throw it to our caller.
-            throw toodledoException;
-        }
-    }
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import take2task.service.TaskServiceException;
+
+/**
+ * Utility methods used when communicating with Toodledo.
+ * The HTTP side of each request is handled by HttpClient.
+ */
+public class ObjectFetcher
+{
+    /**
+     * Start of the URL for all requests to Toodledo.
+     */
+    public static final String TOODLEDO_API_URL = "http://api.toodledo.com/2/";    
+
+    // GSON library object used to convert between JSON and Java objects.
+    // Gson objects are thread-safe, so one is shared by all accounts being processed.
+    private static final Gson gson = new Gson();
+
+    /**
+     * Receives the elements of a JSON array, one at a time, as they are read.
+     */
+    public interface ElementHandler<T>
+    {
+        /**
+         * Handle the next element of the array.
+         * 
+         * @throws TaskServiceException  To stop reading the array.
+         */
+        public abstract void handle(T element) throws TaskServiceException;
+    } // end of interface ElementHandler
+
+    /**
+     * Wraps an exception that an element handler threw, so that it can't be mistaken for a failure
+     * of the request itself. For example, RetryingCaller doesn't make a request again because its
+     * handler failed, even if the handler's exception wraps an I/O error.
+     */
+    @SuppressWarnings("serial")
+    public static class HandlerException extends TaskServiceException
+    {
+        /**
+         * Constructor.
+         * 
+         * @param cause  The exception that the handler threw.
+         */
+        public HandlerException(Exception cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+    } // end of class HandlerException
+
+    /**
+     * Make a request to Toodledo, returning an object of the given type.
+     * 
+     * @param request The URL defining the request of Toodledo.
+     * @param classOfT  The class of the object to return.
+     * @param deadline  When the request must have finished by.
+     * @param isHedged  True to send the request again if it is slow to answer, and use whichever
+     *                  answers first. Only for requests that are safe to make twice.
+     * 
+     * @return  The object, of the specified class, encapsulating the data returned by Toodledo.
+     * 
+     * @throws MalformedURLException  If the request is a malformed URL.
+     * @throws ToodledoException  If Toodledo returned one of its defined error messages
+     *                            rather than the anticipated data.
+     * @throws HttpStatusException  If Toodledo's web server returned an HTTP error status.
+     * @throws IOException  On any other I/O error communicating with Toodledo, including the deadline passing.
+     * @throws JsonParseException On any error parsing Toodledo JSON data.
+     */
+    public static <T> T request(String request, Class<T> classOfT, Deadline deadline, boolean isHedged) 
+        throws MalformedURLException, ToodledoException, IOException, JsonParseException
+    {
+        return convertFromJson(getJson(HttpClient.get(request, deadline, isHedged)), classOfT);
+    }
+
+    /**
+     * Make a request to Toodledo by POSTing form data, returning an object of the given type.
+     * Use this rather than request() when the data is too big to go in a URL.
+     * 
+     * @param request The URL defining the request of Toodledo, without any parameters.
+     * @param formData  The parameters of the request, already URL encoded, 
+     *                  for example "key=abc&tasks=%5B%5D".
+     * @param classOfT  The class of the object to return.
+     * @param deadline  When the request must have finished by.
+     * 
+     * @return  The object, of the specified class, encapsulating the data returned by Toodledo.
+     * 
+     * @throws MalformedURLException  If the request is a malformed URL.
+     * @throws ToodledoException  If Toodledo returned one of its defined error messages
+     *                            rather than the anticipated data.
+     * @throws HttpStatusException  If Toodledo's web server returned an HTTP error status.
+     * @throws IOException  On any other I/O error communicating with Toodledo, including the deadline passing.
+     * @throws JsonParseException On any error parsing Toodledo JSON data.
+     */
+    public static <T> T post(String request, String formData, Class<T> classOfT, Deadline deadline) 
+        throws MalformedURLException, ToodledoException, IOException, JsonParseException
+    {
+        return convertFromJson(getJson(HttpClient.post(request, formData, deadline)), classOfT);
+    }
+    
+    /**
+     * Make a request to Toodledo that returns a JSON array, and hand each element of the array
+     * to the given handler as soon as it has been read. Only one element is held in memory 
+     * at a time, however big the array is.
+     * 
+     * @param request The URL defining the request of Toodledo.
+     * @param headerClass  The class of the first element of the array, which describes the
+     *                     rest of the array, rather than being one of its elements.
+     *                     It is returned rather than handed to the handler.
+     * @param elementClass  The class of each of the other elements of the array.
+     * @param handler  Receives each of the other elements, in order.
+     * @param deadline  When the request must have finished by.
+     * @param isHedged  True to send the request again if it is slow to answer, and use whichever
+     *                  answers first. Only for requests that are safe to make twice.
+     * 
+     * @return  The first element of the array. Null if the array was empty.
+     * 
+     * @throws MalformedURLException  If the request is a malformed URL.
+     * @throws ToodledoException  If Toodledo returned one of its defined error messages
+     *                            rather than the anticipated data.
+     * @throws HandlerException  If the handler threw an exception. Wraps the exception.
+     * @throws HttpStatusException  If Toodledo's web server returned an HTTP error status.
+     * @throws IOException  On any other I/O error communicating with Toodledo, including the deadline passing.
+     * @throws JsonParseException On any error parsing Toodledo JSON data.
+     */
+    public static <H, T> H requestArray(String request, Class<H> headerClass, Class<T> elementClass, ElementHandler<T> handler,
+                                        Deadline deadline, boolean isHedged) 
+        throws MalformedURLException, ToodledoException, HandlerException, IOException, JsonParseException
+    {
+        PushbackReader json = getJson(HttpClient.get(request, deadline, isHedged));
+        try
+        {
+            checkIfErrorMessage(json);
+            
+            JsonReader reader = new JsonReader(json);
+            reader.beginArray();
+            H header = null;
+            if (reader.hasNext())
+            {
+                header = gson.<H>fromJson(reader, headerClass);
+            }
+            
+            while (reader.hasNext())
+            {
+                T element = gson.<T>fromJson(reader, elementClass);
+                try
+                {
+                    handler.handle(element);
+                }
+                catch (TaskServiceException e)
+                {
+                    throw new HandlerException(e);
+                }
+                catch (RuntimeException e)
+                {
+                    throw new HandlerException(e);
+                }
+            }
+            reader.endArray();
+            return header;
+        }
+        finally
+        {
+            json.close();
+        }
+    }
+    
+    /**
+     * Wrap the given response so that we can look ahead at the start of the JSON data.
+     */
+    private static PushbackReader getJson(Reader response)
+    {
+        return new PushbackReader(response, ToodledoException.ERROR_START.length());
+    }
+
+    /**
+     * Convert the given stream of Toodledo JSON data to an object representation.
+     * 
+     * @param json  The Toodledo JSON data to convert. This method will always close
+     *              the reader before returning, so don't use it after the call.
+     * @param classOfT  The class of the object to return.
+     * 
+     * @return  An object of the specified class.
+     * 
+     * @throws ToodledoException  If the JSON stream was actually a Toodledo error message
+     *                            rather than the anticipated data.
+     * @throws IOException  On any I/O error.
+     * @throws JsonParseException On any error parsing the JSON data.
+     */
+    private static <T> T convertFromJson(PushbackReader json, Class<T> classOfT)
+        throws ToodledoException, IOException, JsonParseException
+    {
+        try
+        {    
+            // First check of the the JSON data is a Toodledo error message,
+            // rather than the data we expect.
+            checkIfErrorMessage(json);
+            
+            // It isn't a Toodledo error message (because a ToodledoException would 
+            // have been thrown if it was. Try to parse as the expected data. 
+            return gson.fromJson(json, classOfT);
+        }
+        finally
+        {
+            if (json != null)
+            {
+                json.close();
+            }
+        }
+    }
+    
+    /**
+     * Check if the given JSON data is a Toodledo error message.
+     * If it is, throw a ToodledoException encapsulating the error message.
+     * If it is not, just return.
+     * 
+     * @param json  The JSON data to read. 
+     *              This method never closes this reader, even if an exception is thrown.
+     *              It is always the caller's responsibility to close it.
+     *              
+     * @throws ToodledoException  If the JSON data was an error message. This exception contains the error message.
+     * @throws IOException  On any I/O error.
+     * @throws JsonParseException  On any error parsing the JSON data.
+     */
+    private static void checkIfErrorMessage(PushbackReader json) 
+        throws ToodledoException, IOException, JsonParseException
+    {
+        final int lookAheadLength = ToodledoException.ERROR_START.length();
+        char[] buffer = new char[lookAheadLength];
+        final int countRead = json.read(buffer, 0, lookAheadLength);
+        json.unread(buffer); // Set the reader back to the start of the JSON data.
+        if (countRead == lookAheadLength && ToodledoException.ERROR_START.equals(new String(buffer)))
+        {
+            // Yep. It is an error message. Convert the whole message from the JSON.
+            ToodledoException toodledoException = gson.fromJson(json, ToodledoException.class);
+            
+            // Throw it to our caller.
+            throw toodledoException;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import take2task.service.TaskServiceException;
+import take2task.service.toodledo.domain.ToodledoUser;
+
+/**
+ * Makes calls to Toodledo for a user, riding out failures that are likely to go away by themselves.
+ *
+ * Each failure is sorted into one of three kinds:
+ * <ul>
+ * <li>Transient: the network or Toodledo had a problem (a timeout, an HTTP 5xx, Toodledo's
+ *     "unknown error", "too many requests" or "offline for maintenance"). Reads are tried again,
+ *     after a random, exponentially growing delay. Writes are not, because we can't tell whether
+ *     Toodledo acted on them.</li>
+ * <li>Authentication: Toodledo didn't accept our key, probably because the session token expired
+ *     early. The session token is thrown away, and the call is tried once more with a new key.</li>
+ * <li>Fatal: anything else, such as a bad request. Thrown straight away.</li>
+ * </ul>
+ * Only failures of the request itself are sorted like this. If the handler of a streamed
+ * download fails, the handler's own exception is thrown straight away, whatever it wraps,
+ * so that the elements already handled aren't handed over again.
+ *
+ * Every call goes through the user's circuit breaker, so that we stop calling Toodledo
+ * for a while once it looks unavailable. A call is not tried again if the user's deadline
+ * would pass while waiting to do so.
+ *
+ * Each call must build its request afresh each time it is made, including getting the
+ * user's authentication key, so that a new key is used after an authentication failure.
+ */
+public class RetryingCaller
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    // Maximum number of times to try a read.
+    private static final int MAXIMUM_READ_ATTEMPTS = 4;
+
+    // Delay before the first retry, and the ceiling on the delay. Doubled for each retry.
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAXIMUM_BACKOFF_MILLIS = 8 * 1000;
+
+    // HTTP status codes that mean "try again later".
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR_START = 500;
+
+    /**
+     * The kinds of failure.
+     */
+    private enum Failure
+    {
+        TRANSIENT,
+        AUTHENTICATION,
+        FATAL
+    } // end of enum Failure
+
+    /**
+     * Private constructor. This is a utility class with only static methods.
+     */
+    private RetryingCaller()
+    {
+    }
+
+    /**
+     * Make a call that only reads from Toodledo, so can safely be made more than once.
+     *
+     * @param user  The user the call is for.
+     * @param call  The call. Must get the authentication key from the user each time it is called.
+     *
+     * @return  The result of the call.
+     *
+     * @throws ToodledoException  If Toodledo responded with an error message that retrying didn't fix.
+     * @throws TaskServiceException  On any other error. Usually wraps a lower-level exception.
+     */
+    public static <T> T read(ToodledoUser user, Callable<T> call) throws ToodledoException, TaskServiceException
+    {
+        return call(user, call, MAXIMUM_READ_ATTEMPTS);
+    }
+
+    /**
+     * Make a call that changes something in Toodledo, so is not retried after a transient failure.
+     *
+     * @param user  The user the call is for.
+     * @param call  The call. Must get the authentication key from the user each time it is called.
+     *
+     * @return  The result of the call.
+     *
+     * @throws ToodledoException  If Toodledo responded with an error message.
+     * @throws TaskServiceException  On any other error. Usually wraps a lower-level exception.
+     */
+    public static <T> T write(ToodledoUser user, Callable<T> call) throws ToodledoException, TaskServiceException
+    {
+        return call(user, call, 1);
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Make a call, trying up to the given number of times after transient failures.
+     */
+    private static <T> T call(ToodledoUser user, Callable<T> call, int maximumAttempts)
+        throws ToodledoException, TaskServiceException
+    {
+        CircuitBreaker circuitBreaker = user.getCircuitBreaker();
+        circuitBreaker.checkClosed();
+
+        boolean isKeyRefreshed = false;
+        int attempt = 1;
+        while (true)
+        {
+            try
+            {
+                T result = call.call();
+                circuitBreaker.succeeded();
+                return result;
+            }
+            catch (ObjectFetcher.HandlerException e)
+            {
+                // Toodledo was answering, so it is available. It was our handler that failed.
+                circuitBreaker.succeeded();
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                throw (TaskServiceException) cause;
+            }
+            catch (Exception e)
+            {
+                Failure failure = classify(e);
+                if (failure == Failure.AUTHENTICATION && !isKeyRefreshed)
+                {
+                    logger.fine(String.format("Toodledo didn't accept the key for %s, so getting a new one.",
+                                              user.getUserId()));
+                    user.discardAuthenticationKey();
+                    isKeyRefreshed = true;
+                    continue;
+                }
+
+                if (failure == Failure.TRANSIENT)
+                {
+                    long backoffMillis = getBackoffMillis(attempt);
+                    if (attempt < maximumAttempts && backoffMillis < user.getDeadline().getRemainingMillis())
+                    {
+                        logger.fine(String.format("Call to Toodledo failed (%s). Trying again in %d ms.",
+                                                  e.getMessage(), backoffMillis));
+                        sleep(backoffMillis);
+                        attempt++;
+                        continue;
+                    }
+                    circuitBreaker.failed();
+                }
+                else
+                {
+                    // Toodledo answered, even if it didn't like the request, so it is available.
+                    circuitBreaker.succeeded();
+                }
+
+                if (e instanceof TaskServiceException)
+                {
+                    throw (TaskServiceException) e;
+                }
+                throw new TaskServiceException(e);
+            }
+        }
+    }
+
+    /**
+     * Work out what kind of failure the given exception is.
+     * Look through the exceptions it wraps too, because lower layers often wrap them.
+     */
+    private static Failure classify(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof ToodledoException)
+            {
+                switch (((ToodledoException) cause).getCode())
+                {
+                    case ToodledoException.EMPTY_KEY:
+                    case ToodledoException.INVALID_KEY:
+                        return Failure.AUTHENTICATION;
+
+                    case ToodledoException.UNKNOWN_ERROR:
+                    case ToodledoException.TOO_MANY_REQUESTS:
+                    case ToodledoException.OFFLINE_FOR_MAINTENANCE:
+                        return Failure.TRANSIENT;
+
+                    default:
+                        return Failure.FATAL;
+                }
+            }
+            if (cause instanceof HttpStatusException)
+            {
+                int statusCode = ((HttpStatusException) cause).getStatusCode();
+                boolean isTransient = statusCode >= HTTP_SERVER_ERROR_START ||
+                                      statusCode == HTTP_REQUEST_TIMEOUT ||
+                                      statusCode == HTTP_TOO_MANY_REQUESTS;
+                return isTransient ? Failure.TRANSIENT : Failure.FATAL;
+            }
+            if (cause instanceof IOException)
+            {
+                // Timeouts, refused or dropped connections, and so on.
+                return Failure.TRANSIENT;
+            }
+            if (cause instanceof InterruptedException)
+            {
+                return Failure.FATAL;
+            }
+        }
+        return Failure.FATAL;
+    }
+
+    /**
+     * Return how long to wait before trying again after the given attempt.
+     * The delay doubles with each attempt, and a random half of it is taken off,
+     * so that many accounts failing at once don't all retry at the same moment.
+     */
+    private static long getBackoffMillis(int attempt)
+    {
+        long backoffMillis = Math.min(INITIAL_BACKOFF_MILLIS << (attempt - 1), MAXIMUM_BACKOFF_MILLIS);
+        return backoffMillis / 2 + (long) (Math.random() * (backoffMillis / 2));
+    }
+
+    /**
+     * Sleep for the given time.
+     *
+     * @throws TaskServiceException  If interrupted while sleeping.
+     */
+    private static void sleep(long millis) throws TaskServiceException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while waiting to try Toodledo again.", e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import take2task.domain.Task;
+import take2task.domain.Timestamp;
+import take2task.service.TaskServiceException;
+
+/**
+ * Finds the differences between a user's tasks in Toodledo and the tasks in the user's task store,
+ * from a listing of just the id and modified timestamp of each task in Toodledo.
+ *
+ * Downloading modified tasks can miss changes, for example when the clocks of Toodledo and this
+ * machine disagree, or when a download fails part way through. Rather than download every task
+ * to catch them, each task's id and modified timestamp is turned into a fingerprint, and the
+ * fingerprints are added up in buckets, on both sides. Only the tasks in buckets whose sums
+ * differ are compared one by one, so the work done is in proportion to the differences.
+ *
+ * Tasks that are in the store but not in the listing have been completed or deleted, so they are
+ * removed from the store. Tasks that are in the listing but not in the store, or are in the store
+ * with a different modified timestamp, have changed without us seeing, so need downloading again.
+ */
+class TaskReconciler implements ObjectFetcher.ElementHandler<Task>
+{
+    // Number of buckets to share the fingerprints between. A power of two.
+    private static final int BUCKET_COUNT = 256;
+    private static final int BUCKET_SHIFT = 64 - Integer.numberOfTrailingZeros(BUCKET_COUNT);
+
+    private final TaskStore taskStore;
+
+    // The modified timestamp of each task in Toodledo, by task id, and the fingerprint sums.
+    private final Map<Long, Timestamp> listedTasks = new HashMap<Long, Timestamp>();
+    private final long[] listedBuckets = new long[BUCKET_COUNT];
+
+    private final Set<Long> changedTaskIds = new HashSet<Long>();
+    private Timestamp oldestChanged;
+    private int differentBucketCount;
+    private int removedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param taskStore  The store to compare with Toodledo.
+     */
+    TaskReconciler(TaskStore taskStore)
+    {
+        this.taskStore = taskStore;
+    }
+
+    /**
+     * Receive one task of the listing. It only needs its id and modified timestamp.
+     * The same task may be received more than once.
+     */
+    public synchronized void handle(Task task) throws TaskServiceException
+    {
+        Timestamp previous = listedTasks.put(task.getId(), task.getModifiedTimestamp());
+        if (previous != null)
+        {
+            listedBuckets[getBucket(task.getId())] -= getFingerprint(task.getId(), previous);
+        }
+        listedBuckets[getBucket(task.getId())] += getFingerprint(task.getId(), task.getModifiedTimestamp());
+    }
+
+    /**
+     * Compare the listing with the task store, once the whole listing has been received.
+     * Remove the tasks that are no longer in Toodledo from the store, and find the tasks
+     * that need downloading again.
+     */
+    synchronized void reconcile()
+    {
+        // Sum the fingerprints of the stored tasks in the same way as the listed ones.
+        Map<Long, Timestamp> storedTasks = taskStore.getModifiedTimestamps();
+        long[] storedBuckets = new long[BUCKET_COUNT];
+        for (Map.Entry<Long, Timestamp> storedTask : storedTasks.entrySet())
+        {
+            storedBuckets[getBucket(storedTask.getKey())] += getFingerprint(storedTask.getKey(), storedTask.getValue());
+        }
+
+        boolean[] isDifferent = new boolean[BUCKET_COUNT];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+        {
+            if (listedBuckets[bucket] != storedBuckets[bucket])
+            {
+                isDifferent[bucket] = true;
+                differentBucketCount++;
+            }
+        }
+        if (differentBucketCount == 0)
+        {
+            return;
+        }
+
+        // Compare the tasks in the buckets that differ, one by one.
+        for (Map.Entry<Long, Timestamp> storedTask : storedTasks.entrySet())
+        {
+            long taskId = storedTask.getKey();
+            if (isDifferent[getBucket(taskId)] && !listedTasks.containsKey(taskId))
+            {
+                taskStore.remove(taskId);
+                removedCount++;
+            }
+        }
+        for (Map.Entry<Long, Timestamp> listedTask : listedTasks.entrySet())
+        {
+            long taskId = listedTask.getKey();
+            Timestamp modified = listedTask.getValue();
+            Timestamp storedModified = storedTasks.get(taskId);
+            if (isDifferent[getBucket(taskId)] && (storedModified == null || !modified.equals(storedModified)))
+            {
+                changedTaskIds.add(taskId);
+                if (oldestChanged == null || modified.getValue() < oldestChanged.getValue())
+                {
+                    oldestChanged = modified;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the ids of the tasks that need downloading again.
+     */
+    synchronized Set<Long> getChangedTaskIds()
+    {
+        return new HashSet<Long>(changedTaskIds);
+    }
+
+    /**
+     * Return the oldest modified timestamp of the tasks that need downloading again,
+     * or null if there aren't any.
+     */
+    synchronized Timestamp getOldestChangedTimestamp()
+    {
+        return oldestChanged;
+    }
+
+    /**
+     * Return the number of tasks in the listing.
+     */
+    synchronized int getListedCount()
+    {
+        return listedTasks.size();
+    }
+
+    /**
+     * Return the number of buckets whose fingerprints differed.
+     */
+    synchronized int getDifferentBucketCount()
+    {
+        return differentBucketCount;
+    }
+
+    /**
+     * Return the number of tasks removed from the store.
+     */
+    synchronized int getRemovedCount()
+    {
+        return removedCount;
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Return the bucket that the task with the given id belongs in.
+     * Task ids are handed out in order, so mix them up to spread them evenly.
+     */
+    private static int getBucket(long taskId)
+    {
+        return (int) ((taskId * 0x9E3779B97F4A7C15L) >>> BUCKET_SHIFT);
+    }
+
+    /**
+     * Return the fingerprint of the given task, as of the given modified timestamp.
+     * Any change to either makes a different fingerprint (almost certainly).
+     */
+    private static long getFingerprint(long taskId, Timestamp modified)
+    {
+        long fingerprint = taskId * 0xC2B2AE3D27D4EB4FL + modified.getValue();
+        fingerprint = (fingerprint ^ (fingerprint >>> 33)) * 0xFF51AFD7ED558CCDL;
+        fingerprint = (fingerprint ^ (fingerprint >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return fingerprint ^ (fingerprint >>> 33);
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import take2task.domain.Context;
+import take2task.domain.ContextSet;
+import take2task.domain.Task;
+import take2task.domain.Timestamp;
+import take2task.service.TaskService;
+
+/**
+ * What we know about a user's tasks in Toodledo, kept on disk so that it survives a restart.
+ * One of these is kept for each user.
+ *
+ * Holds the tasks as Toodledo last had them (notes included), the contexts and folders,
+ * and named timestamps such as when tasks were last downloaded. So after a restart we can
+ * carry on downloading just the tasks modified since we stopped, and don't need to download
+ * tasks that haven't changed.
+ *
+ * On disk, the store is a log that changes are appended to, one line each, read back into
+ * memory when the store is opened. Once the log holds many more lines than there are tasks,
+ * it is rewritten with one line for each thing still in the store. Changes are buffered,
+ * and only written out by flush(), so a crash loses the changes since the last flush, but
+ * leaves the log as it was at some earlier point. The store is only a cache of what is in
+ * Toodledo, so if it can't be read or written, we carry on with what is in memory.
+ */
+public class TaskStore
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    private static final Gson gson = new Gson();
+
+    private static final String FOLDER_NAME =
+        System.getProperty("user.home") + File.separator + TaskService.FILE_SYSTEM_FOLDER_NAME;
+    private static final String FILE_NAME_PREFIX = "store";
+
+    // Compact the log once it has this many times as many lines as there are things in the store.
+    private static final int COMPACTION_RATIO = 3;
+
+    // ... and at least this many lines. Not worth compacting a small log.
+    private static final int MINIMUM_COMPACTION_LINES = 1000;
+
+    // The first character of each line in the log says what the line is.
+    private static final char TASK_LINE = 'T';      // T <task as JSON>
+    private static final char REMOVE_LINE = 'R';    // R <task id>
+    private static final char CONTEXTS_LINE = 'C';  // C <contexts as JSON>
+    private static final char FOLDERS_LINE = 'F';   // F <folders as JSON>
+    private static final char TIMESTAMP_LINE = 'W'; // W <name> <timestamp value>
+
+    private final File file;
+
+    // Each task as JSON, by task id. Kept as JSON rather than as Task objects,
+    // because Task objects are changed when they are modified.
+    private final Map<Long, StoredTask> tasks = new HashMap<Long, StoredTask>();
+    private final Map<String, Long> timestamps = new HashMap<String, Long>();
+    private Context[] contexts; // null if we don't have them
+    private Context[] folders; // null if we don't have them
+
+    // Lines changed since the last flush, and the number of lines in the log.
+    private final List<String> unwrittenLines = new ArrayList<String>();
+    private int lineCount;
+
+    // False once the log couldn't be written, so that we stop trying.
+    private boolean isWritable = true;
+
+    /**
+     * Constructor. Read in the store for the given user, if there is one on disk.
+     *
+     * @param userId  The user whose tasks are stored.
+     */
+    public TaskStore(String userId)
+    {
+        this.file = new File(FOLDER_NAME, FILE_NAME_PREFIX + "-" + userId);
+        try
+        {
+            load();
+            logger.fine(String.format("Loaded %d tasks from %s.", tasks.size(), file));
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Couldn't read " + file + ", so starting with an empty task store.", e);
+            tasks.clear();
+            timestamps.clear();
+            contexts = null;
+            folders = null;
+            lineCount = MINIMUM_COMPACTION_LINES; // Rewrite the log at the next flush.
+        }
+    }
+
+    /**
+     * Return true if there are no tasks in the store.
+     */
+    public synchronized boolean isEmpty()
+    {
+        return tasks.isEmpty();
+    }
+
+    /**
+     * Store the given task, as it is in Toodledo. Replaces any task with the same id.
+     * The task must have its note.
+     */
+    public synchronized void put(Task task)
+    {
+        putJson(task.getId(), task.getModifiedTimestamp().getValue(), gson.toJson(task));
+    }
+
+    /**
+     * Store the given task, which we have just updated in Toodledo, so that it now has the given
+     * modified timestamp.
+     */
+    public synchronized void putUpdated(Task task, Timestamp modified)
+    {
+        JsonObject json = gson.toJsonTree(task).getAsJsonObject();
+        json.add("modified", new JsonPrimitive(modified.getValue()));
+        putJson(task.getId(), modified.getValue(), gson.toJson(json));
+    }
+
+    /**
+     * Return a copy of the task with the given id, or null if it isn't in the store.
+     */
+    public synchronized Task get(long taskId)
+    {
+        StoredTask storedTask = tasks.get(taskId);
+        return (storedTask == null) ? null : gson.fromJson(storedTask.json, Task.class);
+    }
+
+    /**
+     * Return copies of all the tasks in the store.
+     */
+    public synchronized List<Task> getAll()
+    {
+        List<Task> all = new ArrayList<Task>(tasks.size());
+        for (StoredTask storedTask : tasks.values())
+        {
+            all.add(gson.fromJson(storedTask.json, Task.class));
+        }
+        return all;
+    }
+
+    /**
+     * Return the modified timestamp of each task in the store, by task id.
+     */
+    public synchronized Map<Long, Timestamp> getModifiedTimestamps()
+    {
+        Map<Long, Timestamp> modifiedTimestamps = new HashMap<Long, Timestamp>(tasks.size() * 2);
+        for (Map.Entry<Long, StoredTask> storedTask : tasks.entrySet())
+        {
+            modifiedTimestamps.put(storedTask.getKey(), new Timestamp(storedTask.getValue().modified));
+        }
+        return modifiedTimestamps;
+    }
+
+    /**
+     * Remove the task with the given id, because it has been completed or deleted.
+     */
+    public synchronized void remove(long taskId)
+    {
+        if (tasks.remove(taskId) != null)
+        {
+            unwrittenLines.add(REMOVE_LINE + " " + taskId);
+        }
+    }
+
+    /**
+     * Remove all tasks except the ones with the given ids. Used after downloading all tasks,
+     * to remove the ones that have been completed or deleted.
+     */
+    public synchronized void retainOnly(Set<Long> taskIds)
+    {
+        for (Long taskId : new ArrayList<Long>(tasks.keySet()))
+        {
+            if (!taskIds.contains(taskId))
+            {
+                remove(taskId);
+            }
+        }
+    }
+
+    /**
+     * Return the timestamp with the given name, or a zero timestamp if it hasn't been set.
+     */
+    public synchronized Timestamp getTimestamp(String name)
+    {
+        Long value = timestamps.get(name);
+        return new Timestamp(value == null ? 0 : value.longValue());
+    }
+
+    /**
+     * Set the timestamp with the given name.
+     *
+     * @param name  The name of the timestamp. Must not contain spaces.
+     * @param timestamp  Its value.
+     */
+    public synchronized void setTimestamp(String name, Timestamp timestamp)
+    {
+        timestamps.put(name, timestamp.getValue());
+        unwrittenLines.add(TIMESTAMP_LINE + " " + name + " " + timestamp.getValue());
+    }
+
+    /**
+     * Return the contexts, or null if they haven't been stored.
+     */
+    public synchronized ContextSet getContexts()
+    {
+        return (contexts == null) ? null : new ContextSet(contexts);
+    }
+
+    /**
+     * Store the contexts.
+     */
+    public synchronized void setContexts(ContextSet contextSet)
+    {
+        contexts = contextSet.toArray();
+        unwrittenLines.add(CONTEXTS_LINE + " " + gson.toJson(contexts));
+    }
+
+    /**
+     * Return the folders, or null if they haven't been stored.
+     */
+    public synchronized ContextSet getFolders()
+    {
+        return (folders == null) ? null : new ContextSet(folders);
+    }
+
+    /**
+     * Store the folders.
+     */
+    public synchronized void setFolders(ContextSet folderSet)
+    {
+        folders = folderSet.toArray();
+        unwrittenLines.add(FOLDERS_LINE + " " + gson.toJson(folders));
+    }
+
+    /**
+     * Write the changes since the last flush to disk.
+     * Rewrite the log instead, if it has grown much bigger than what it holds.
+     */
+    public synchronized void flush()
+    {
+        if (!isWritable)
+        {
+            unwrittenLines.clear();
+            return;
+        }
+        if (unwrittenLines.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            createFolder();
+            int liveLineCount = tasks.size() + timestamps.size() + 2;
+            if (lineCount + unwrittenLines.size() >= Math.max(MINIMUM_COMPACTION_LINES, COMPACTION_RATIO * liveLineCount))
+            {
+                compact();
+            }
+            else
+            {
+                Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+                try
+                {
+                    writeLines(out, unwrittenLines);
+                }
+                finally
+                {
+                    out.close();
+                }
+                lineCount += unwrittenLines.size();
+            }
+            unwrittenLines.clear();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Couldn't write " + file + ", so no longer saving tasks to disk.", e);
+            isWritable = false;
+        }
+    }
+
+    // ---------- Private helper methods ----------
+
+    /**
+     * Store the given task, as JSON.
+     */
+    private void putJson(long taskId, long modified, String json)
+    {
+        tasks.put(taskId, new StoredTask(modified, json));
+        unwrittenLines.add(TASK_LINE + " " + json);
+    }
+
+    /**
+     * Read the log into memory.
+     */
+    private void load() throws IOException
+    {
+        // If we were part way through compacting the log, the new log is complete,
+        // because the old one is only deleted once the new one has been written.
+        File newFile = getNewFile();
+        if (!file.exists() && newFile.exists() && !newFile.renameTo(file))
+        {
+            throw new IOException("Could not rename " + newFile + " to " + file);
+        }
+
+        BufferedReader in;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        }
+        catch (FileNotFoundException e)
+        {
+            return; // Nothing stored yet.
+        }
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                lineCount++;
+                try
+                {
+                    readLine(line);
+                }
+                catch (RuntimeException e)
+                {
+                    // Most likely the last line, cut short by a crash. Just leave it out.
+                    logger.fine(String.format("Ignoring line %d of %s: %s", lineCount, file, e));
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Apply one line of the log. Throws a RuntimeException if the line is malformed.
+     */
+    private void readLine(String line)
+    {
+        if (line.length() < 2)
+        {
+            return;
+        }
+        String content = line.substring(2);
+        switch (line.charAt(0))
+        {
+            case TASK_LINE:
+                Task task = gson.fromJson(content, Task.class);
+                tasks.put(task.getId(), new StoredTask(task.getModifiedTimestamp().getValue(), content));
+                break;
+
+            case REMOVE_LINE:
+                tasks.remove(Long.parseLong(content));
+                break;
+
+            case CONTEXTS_LINE:
+                contexts = gson.fromJson(content, Context[].class);
+                break;
+
+            case FOLDERS_LINE:
+                folders = gson.fromJson(content, Context[].class);
+                break;
+
+            case TIMESTAMP_LINE:
+                int space = content.indexOf(' ');
+                timestamps.put(content.substring(0, space), Long.parseLong(content.substring(space + 1)));
+                break;
+
+            default:
+                throw new JsonParseException("Unknown kind of line: " + line.charAt(0));
+        }
+    }
+
+    /**
+     * Rewrite the log with one line for each thing in the store.
+     * Write it to a new file, then replace the old one with it, so that there is always a complete log on disk.
+     */
+    private void compact() throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Long> timestamp : timestamps.entrySet())
+        {
+            lines.add(TIMESTAMP_LINE + " " + timestamp.getKey() + " " + timestamp.getValue());
+        }
+        if (contexts != null)
+        {
+            lines.add(CONTEXTS_LINE + " " + gson.toJson(contexts));
+        }
+        if (folders != null)
+        {
+            lines.add(FOLDERS_LINE + " " + gson.toJson(folders));
+        }
+        for (StoredTask storedTask : tasks.values())
+        {
+            lines.add(TASK_LINE + " " + storedTask.json);
+        }
+
+        File newFile = getNewFile();
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newFile), "UTF-8"));
+        try
+        {
+            writeLines(out, lines);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // Windows won't rename a file over an existing one, so delete the old log first.
+        // If we stop in between, load() finds the new log.
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Could not delete " + file);
+        }
+        if (!newFile.renameTo(file))
+        {
+            throw new IOException("Could not rename " + newFile + " to " + file);
+        }
+        lineCount = lines.size();
+        logger.fine(String.format("Compacted %s to %d lines.", file, lineCount));
+    }
+
+    /**
+     * Write the given lines, each followed by a newline.
+     */
+    private static void writeLines(Writer out, List<String> lines) throws IOException
+    {
+        for (String line : lines)
+        {
+            out.write(line);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Create the folder that the log is in, if it doesn't exist yet.
+     */
+    private void createFolder() throws IOException
+    {
+        // Another account may create the folder at the same time as us,
+        // so only complain if the folder still doesn't exist.
+        File folder = file.getParentFile();
+        if (!folder.exists())
+        {
+            if (folder.mkdirs())
+            {
+                logger.info("Created folder " + folder);
+            }
+            else if (!folder.exists())
+            {
+                throw new IOException("Could not create folder " + folder);
+            }
+        }
+    }
+
+    /**
+     * Return the file that a compacted log is written to, before it replaces the log.
+     */
+    private File getNewFile()
+    {
+        return new File(file.getPath() + ".new");
+    }
+
+    // ---------- Private helper classes ----------
+
+    /**
+     * A task as JSON, and when it was last modified.
+     */
+    private static class StoredTask
+    {
+        final long modified;
+        final String json;
+
+        StoredTask(long modified, String json)
+        {
+            this.modified = modified;
+            this.json = json;
+        }
+    } // end of class StoredTask
+}
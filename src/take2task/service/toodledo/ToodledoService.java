@@ -1,333 +1,1052 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.service.toodledo;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
-import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import com.google.gson.Gson;
-
-import take2task.domain.ContextSet;
-import take2task.domain.Task;
-import take2task.domain.User;
-import take2task.service.TaskService;
-import take2task.service.TaskServiceException;
-import take2task.service.toodledo.domain.AccountInfo;
-import take2task.service.toodledo.domain.Id;
-import take2task.service.toodledo.domain.ToodledoUser;
-
-/**
- * All access to Toodledo is via this service.
- */
-public class ToodledoService implements TaskService
-{
-    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
-
-    private static Gson gson = new Gson(); // GSON library object used to convert between JSON and Java objects.
-
-    /**
-     * Ping Toodledo.
-     * 
-     * @return true if the task service is available, otherwise false.
-     */
-    @Override
-    public boolean ping()
-    {
-        InputStream in = null;
-        try
-        {
-            URL pingUrl = new URL(ObjectFetcher.TOODLEDO_API_URL);
-            URLConnection connection = pingUrl.openConnection();
-            in = connection.getInputStream();
-            return (in.read() != -1);
-        }
-        catch (IOException e)
-        {
-            logger.log(Level.FINE, "ping() failed", e);
-            return false;
-        }
-        finally
-        {
-            if (in != null)
-            {
-                try
-                {
-                    in.close();
-                } 
-                catch (IOException e)
-                {
-                    logger.log(Level.FINE, "Couldn't close URL connection input stream", e);
-                }
-            }
-        }
-    }  
-
-    /**
-     * Authenticate to Toodledo. 
-     * 
-     * @param userId Toodledo user id. Not username, but instead the Unique ID
-     *               found on the Toodledo Account Settings page.
-     * @param password Toodledo password.
-     * 
-     * @return An object, representing an authenticated user, 
-     *         which must be passed to all other methods on the interface.
-     *
-     * @throws ToodledoException If Toodledo responded with an error message.
-     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
-     */
-    @Override
-    public User authenticate(String userId, String password)
-        throws ToodledoException, TaskServiceException
-    {
-        ToodledoUser user = new ToodledoUser(userId, password);
-        
-        // Get account info from Toodledo.
-        // This will do all the necessary steps to authenticate to Toodledo:
-        // generating session token and authentication key, and then getting
-        // account information using that authentication key.
-        // If the method call succeeds (returns without throwing an exception), 
-        // then authentication has succeeded. If it throws an exception, 
-        // authentication has failed.
-        getAccountInfo(user);
-        logger.fine("Authentication successful.");
-        return user;
-    }
-    
-    /**
-     * @see take2task.service.TaskService#getAllTasks(take2task.domain.User)
-     */
-    @Override
-    public Task[] getAllTasks(User user) throws ToodledoException, TaskServiceException
-    {
-        return getTasks(user, false, false);
-    }
-    
-    /**
-     * @see take2task.service.TaskService#getModifiedTasks(take2task.domain.User)
-     */
-    @Override
-    public Task[] getModifiedTasks(User user) throws ToodledoException, TaskServiceException
-    {
-        return getTasks(user, true, false);
-    }
-    
-    /**
-     * @see take2task.service.TaskService#updateTasks(take2task.domain.User, take2task.domain.Task[])
-     */
-    @Override
-    public int updateTasks(User user, Task[] tasks) throws ToodledoException, TaskServiceException
-    {
-        // Toodledo says that you can update a maximum of 50 tasks in one update.
-        // When I tried with 50, however, I got HTTP Error 414 Request URI too long.
-        // So let's be much more conservative.
-        // Once I started having large comments, even 10 was failing.
-        final int MAXIMUM_TASK_UPDATE_COUNT = 3;
-        
-        int updatedTaskCount = 0;
-        for (int i = 0; i < tasks.length; i += MAXIMUM_TASK_UPDATE_COUNT)
-        {
-            int chunkSize = tasks.length - i;
-            if (chunkSize > MAXIMUM_TASK_UPDATE_COUNT)
-                chunkSize = MAXIMUM_TASK_UPDATE_COUNT;
-            Task[] tasksChunk = Arrays.copyOfRange(tasks, i, i + chunkSize);
-            
-            // Build up the request to update the tasks.
-            String key = ((ToodledoUser)user).getAuthenticationKey();
-            StringBuffer updateRequest = new StringBuffer(ObjectFetcher.TOODLEDO_API_URL);
-            updateRequest.append("tasks/edit.php?key=").append(key);
-            
-            try
-            {
-                // Convert the tasks to URL encoded JSON, and add it to the request.
-                String tasksUrlParameter = URLEncoder.encode(gson.toJson(tasksChunk), "UTF-8");
-                updateRequest.append(";tasks=").append(tasksUrlParameter);
-                updateRequest.append(';').append(Task.FIELDS);
-                
-                // Ask Toodledo to update the tasks.
-                Task[] updatedTasks = ObjectFetcher.request(updateRequest.toString(), Task[].class);
-                if (updatedTasks.length != tasksChunk.length)
-                {
-                    logger.warning(String.format("We asked Toodledo to update %d tasks, but it only updated %d tasks.", 
-                                                 tasksChunk.length, updatedTasks.length));
-                }
-                updatedTaskCount += updatedTasks.length;
-            }
-            catch (TaskServiceException e)
-            {
-                throw e;
-            }
-            catch (Exception e)
-            {
-                throw new TaskServiceException(e);
-            }
-        }
-        
-        return updatedTaskCount;
-    }
- 
-    /**
-     * @see take2task.service.TaskService#deleteCompletedTasks(take2task.domain.User)
-     */
-    @Override
-    public int deleteCompletedTasks(User user) throws ToodledoException, TaskServiceException
-    {
-        Task[] completedTasks = getTasks(user, false, true);
-        if (completedTasks.length == 0)
-        {
-            logger.finer("No completed tasks to delete.");
-            return 0;
-        }
-        
-        // Build up the request to delete the tasks.
-        String key = ((ToodledoUser)user).getAuthenticationKey();
-        StringBuffer deleteRequest = new StringBuffer(ObjectFetcher.TOODLEDO_API_URL);
-        deleteRequest.append("tasks/delete.php?key=").append(key);
-        
-        // Extract the ids from the completed tasks.
-        long[] ids = new long[completedTasks.length];
-        for (int i = 0; i < completedTasks.length; i++)
-        {
-            ids[i] = completedTasks[i].getId();
-        }
-
-        try
-        {
-            // Convert the ids to URL encoded JSON, and add it to the request.
-            String idsUrlParameter = URLEncoder.encode(gson.toJson(ids), "UTF-8");
-            deleteRequest.append(";tasks=").append(idsUrlParameter);
-    
-            // Ask Toodledo to delete the tasks.
-            Id[] deletedTaskIds = ObjectFetcher.request(deleteRequest.toString(), Id[].class);
-            if (deletedTaskIds.length != ids.length)
-            {
-                logger.warning(String.format("We asked Toodledo to delete %d tasks, but it only deleted %d tasks.", 
-                                             ids.length, deletedTaskIds.length));
-            }
-            return deletedTaskIds.length;
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }        
-    }
-    
-    // ---------- Private helper methods ----------
-
-    /**
-     * Return account info from Toodledo. This includes timestamps of when tasks, etc, 
-     * were last updated. We can use this to determine which tasks and other things
-     * we need to fetch.
-     * 
-     * @throws ToodledoException If Toodledo responded with an error message.
-     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
-     */
-    private AccountInfo getAccountInfo(User user) throws ToodledoException, TaskServiceException
-    {
-        String key = ((ToodledoUser)user).getAuthenticationKey();
-        String accountInfoRequest = ObjectFetcher.TOODLEDO_API_URL + "account/get.php?key=" + key;
-        try
-        {
-            return ObjectFetcher.request(accountInfoRequest, AccountInfo.class);
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }        
-    }
-    
-    /**
-     * Return tasks from Toodledo matching the given criteria for the given user.
-     * 
-     * @param user  The user to get tasks for.
-     * @param modifiedOnly  If true, only get tasks modified since we last checked.
-     *                      If false, get all tasks.
-     * @param completed  If true, get completed tasks.
-     *                   If false, get uncompleted tasks.
-     */
-    private Task[] getTasks(User user, boolean modifiedOnly, boolean completed) 
-        throws ToodledoException, TaskServiceException
-    {
-        ToodledoUser toodledoUser = (ToodledoUser) user;
-        
-        // Ask Toodledo for account info, including timestamps of last changes.
-        AccountInfo accountInfo = getAccountInfo(user);
-        
-        // If we are only getting tasks modified since we last downloaded, and if no tasks have been modified, 
-        // then we don't need to do anything.
-        if (modifiedOnly && 
-            accountInfo.getLastEditedTaskTimestamp().getValue() < toodledoUser.getLastTaskDownloadTimestamp().getValue())
-        {
-            return new Task[0];
-        }
-
-        //Build the request for Toodledo.
-        String key = ((ToodledoUser)user).getAuthenticationKey();
-        StringBuffer request = new StringBuffer(ObjectFetcher.TOODLEDO_API_URL);
-        request.append("tasks/get.php?key=").append(key);
-        request.append(';').append(Task.FIELDS);
-        
-        if (modifiedOnly)
-        {
-            request.append(";modafter=").append(toodledoUser.getLastTaskDownloadTimestamp().getValue());            
-        }
-        
-        request.append(completed ? ";comp=1" : ";comp=0");
-
-        // Make the request.
-        try
-        {
-            Task[] tasksWithDummy = ObjectFetcher.request(request.toString(), Task[].class);
-            
-            // Set the time that we last checked tasks to now.
-            // Don't do this, however, if we have downloaded completed tasks,
-            // because it is only uncompleted tasks that might have changed.
-            // We delete any completed tasks each time we download them.
-            if (!completed)
-            {
-                toodledoUser.updateLastTaskDownloadTimestamp();
-            }
-
-            // The first entry in JSON that Toodledo returns is not a task, but instead
-            // some meta-data that we don't need. GSON restores it as a task with a null title,
-            // stored as the zeroth element of the array. We need to remove it.
-            assert tasksWithDummy[0].getTitle() == null : "Zeroth entry of tasks array returned from Toodledo was not a 'dummy'.";
-            Task[] tasks = Arrays.copyOfRange(tasksWithDummy, 1, tasksWithDummy.length);
-            
-            // Insert the set of available contexts and folders (for this user) into every task.
-            ContextSet contexts = toodledoUser.getContexts(accountInfo.getLastEditedContextTimestamp());
-            ContextSet folders = toodledoUser.getFolders(accountInfo.getLastEditedFolderTimestamp());
-            for (Task task : tasks)
-            {
-                task.setAvailableContexts(contexts);
-                task.setAvailableFolders(folders);
-            }
-            
-            return tasks;
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }        
-    }
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import take2task.domain.ContextSet;
+import take2task.domain.Task;
+import take2task.domain.Timestamp;
+import take2task.domain.User;
+import take2task.service.TaskHandler;
+import take2task.service.TaskService;
+import take2task.service.TaskServiceException;
+import take2task.service.toodledo.domain.AccountInfo;
+import take2task.service.toodledo.domain.TaskListInfo;
+import take2task.service.toodledo.domain.ToodledoUser;
+
+/**
+ * All access to Toodledo is via this service.
+ * The service holds no per-account state (that all lives in the ToodledoUser objects),
+ * so one instance can safely be shared by all the accounts being processed.
+ */
+public class ToodledoService implements TaskService
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    // GSON library object used to convert between JSON and Java objects.
+    // Gson objects are thread-safe, so one is shared by all accounts being processed.
+    private static final Gson gson = new Gson();
+
+    // Toodledo says that you can update a maximum of 50 tasks in one update.
+    // When I sent the tasks in the URL, I got HTTP Error 414 Request URI too long,
+    // even with 10 tasks once I started having large comments. So now we POST the tasks
+    // in the body of the request, and also limit how big the body gets.
+    public static final int MAXIMUM_TASK_UPDATE_COUNT = 50;
+    private static final int MAXIMUM_UPDATE_BODY_BYTES = 64 * 1024;
+    
+    // Every request made during a processing cycle must finish within this long of the cycle starting,
+    // so that a stalled connection can't hold up the cycle (and the cycles after it) for ever.
+    private static final long CYCLE_TIME_BUDGET_MILLIS = 10 * 60 * 1000;
+    
+    // Time allowed for Toodledo to answer a ping.
+    private static final long PING_TIMEOUT_MILLIS = 15 * 1000;
+    
+    // Toodledo returns at most this many tasks in each request.
+    private static final int TASK_PAGE_SIZE = 1000;
+    
+    // Each page of a paged download starts this many tasks before the previous page ended,
+    // so that tasks moving up the list during the download can't slip between the pages.
+    private static final int TASK_PAGE_OVERLAP = 50;
+    
+    // Maximum number of pages to download at the same time, for one user.
+    private static final int MAXIMUM_PARALLEL_PAGES = 4;
+    
+    // Maximum number of times to download all the pages, if tasks keep moving between them.
+    private static final int MAXIMUM_PAGED_PASSES = 3;
+    
+    // URL encoded JSON array punctuation, used to join URL encoded tasks into an array.
+    private static final String ENCODED_JSON_ARRAY_START = "%5B"; // [
+    private static final String ENCODED_JSON_SEPARATOR = "%2C";   // ,
+    private static final String ENCODED_JSON_ARRAY_END = "%5D";   // ]
+    
+    // Used to make requests to Toodledo in parallel, for example to refresh folders while refreshing
+    // contexts, or to download several pages of tasks at once. Daemon threads, so that they never keep the program running.
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "take2task-toodledo-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    // Deletes completed tasks, on its own schedule.
+    private final CompletedTaskSweeper sweeper = new CompletedTaskSweeper(executor);
+
+    /**
+     * Ping Toodledo.
+     * 
+     * @return true if the task service is available, otherwise false.
+     */
+    @Override
+    public boolean ping()
+    {
+        Reader in = null;
+        try
+        {
+            in = HttpClient.get(ObjectFetcher.TOODLEDO_API_URL, new Deadline(PING_TIMEOUT_MILLIS), false);
+            return (in.read() != -1);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "ping() failed", e);
+            return false;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                } 
+                catch (IOException e)
+                {
+                    logger.log(Level.FINE, "Couldn't close ping response", e);
+                }
+            }
+        }
+    }  
+
+    /**
+     * Authenticate to Toodledo. 
+     * 
+     * @param userId Toodledo user id. Not username, but instead the Unique ID
+     *               found on the Toodledo Account Settings page.
+     * @param password Toodledo password.
+     * 
+     * @return An object, representing an authenticated user, 
+     *         which must be passed to all other methods on the interface.
+     *
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    @Override
+    public User authenticate(String userId, String password)
+        throws ToodledoException, TaskServiceException
+    {
+        ToodledoUser user = new ToodledoUser(userId, password);
+        
+        // Start a cycle, which gets account info from Toodledo.
+        // This will do all the necessary steps to authenticate to Toodledo:
+        // generating session token and authentication key, and then getting
+        // account information using that authentication key.
+        // If the method call succeeds (returns without throwing an exception), 
+        // then authentication has succeeded. If it throws an exception, 
+        // authentication has failed.
+        startCycle(user);
+        logger.fine("Authentication successful.");
+        return user;
+    }
+    
+    /**
+     * Start a processing cycle for the given user. 
+     * Get the account info from Toodledo, once, for the whole cycle. It tells us
+     * whether anything has changed, so on a cycle where nothing has, this is
+     * the only request we make.
+     * 
+     * @see take2task.service.TaskService#startCycle(take2task.domain.User)
+     */
+    @Override
+    public void startCycle(User user) throws ToodledoException, TaskServiceException
+    {
+        ToodledoUser toodledoUser = (ToodledoUser) user;
+        toodledoUser.setCycleDeadline(new Deadline(CYCLE_TIME_BUDGET_MILLIS));
+        toodledoUser.setCycleAccountInfo(null); // Make sure we fetch fresh account info.
+        toodledoUser.setCycleAccountInfo(getAccountInfo(user));
+    }
+    
+    /**
+     * @see take2task.service.TaskService#endCycle(take2task.domain.User)
+     */
+    @Override
+    public void endCycle(User user)
+    {
+        if (user != null)
+        {
+            ((ToodledoUser) user).setCycleAccountInfo(null);
+            ((ToodledoUser) user).setCycleDeadline(null);
+            
+            // Save what we learned this cycle, in case the program is restarted.
+            ((ToodledoUser) user).getTaskStore().flush();
+        }
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getAllTasks(take2task.domain.User)
+     */
+    @Override
+    public Task[] getAllTasks(User user) throws ToodledoException, TaskServiceException
+    {
+        return getTasks(user, false);
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getModifiedTasks(take2task.domain.User)
+     */
+    @Override
+    public Task[] getModifiedTasks(User user) throws ToodledoException, TaskServiceException
+    {
+        return getTasks(user, true);
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getAllTasks(take2task.domain.User, take2task.service.TaskHandler)
+     */
+    @Override
+    public int getAllTasks(User user, TaskHandler handler) throws ToodledoException, TaskServiceException
+    {
+        return getTasks(user, false, handler);
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getModifiedTasks(take2task.domain.User, take2task.service.TaskHandler)
+     */
+    @Override
+    public int getModifiedTasks(User user, TaskHandler handler) throws ToodledoException, TaskServiceException
+    {
+        return getTasks(user, true, handler);
+    }
+    
+    /**
+     * @see take2task.service.TaskService#reconcileTasks(take2task.domain.User, take2task.service.TaskHandler)
+     */
+    @Override
+    public int reconcileTasks(User user, TaskHandler handler) throws ToodledoException, TaskServiceException
+    {
+        ToodledoUser toodledoUser = (ToodledoUser) user;
+        TaskStore taskStore = toodledoUser.getTaskStore();
+        if (taskStore.isEmpty())
+        {
+            return getTasks(user, false, handler); // Nothing to reconcile with.
+        }
+        
+        AccountInfo accountInfo = getAccountInfo(user);
+        Timestamp checkStart = new Timestamp(); // now
+        try
+        {
+            // Without a fields parameter, Toodledo only returns the few fields that it always returns,
+            // which include the id and modified timestamp that the reconciler needs.
+            TaskReconciler reconciler = new TaskReconciler(taskStore);
+            int total = getPagedTasks(toodledoUser, ";comp=0", reconciler);
+            
+            // Tasks added while we listed them might have been missed, and would be taken for deleted.
+            if (reconciler.getListedCount() < total)
+            {
+                logger.fine(String.format("Listed %d tasks, but Toodledo says there are %d. Checking them again next time.", 
+                                          reconciler.getListedCount(), total));
+                return 0;
+            }
+            reconciler.reconcile();
+            
+            final Set<Long> changedTaskIds = reconciler.getChangedTaskIds();
+            logger.fine(String.format("Checked %d tasks: %d buckets differed, %d tasks removed, %d tasks changed.", 
+                                      reconciler.getListedCount(), reconciler.getDifferentBucketCount(), 
+                                      reconciler.getRemovedCount(), changedTaskIds.size()));
+            
+            int taskCount = 0;
+            if (!changedTaskIds.isEmpty())
+            {
+                // Toodledo can't give us particular tasks, so ask for all the tasks modified since the
+                // oldest of the changed ones was, and only hand on the changed ones.
+                Future<ContextSet> foldersFuture = refreshFolders(toodledoUser, accountInfo);
+                ContextSet contexts = toodledoUser.getContexts(accountInfo.getLastEditedContextTimestamp());
+                final TaskCollector collector = new TaskCollector(toodledoUser, handler, contexts, getResult(foldersFuture), 
+                                                                  true);
+                final Set<Long> missingTaskIds = new HashSet<Long>(changedTaskIds);
+                String parameters = ";" + Task.FIELDS + ";comp=0;modafter=" + 
+                                    (reconciler.getOldestChangedTimestamp().getValue() - 1);
+                getPagedTasks(toodledoUser, parameters, new ObjectFetcher.ElementHandler<Task>()
+                {
+                    public void handle(Task task) throws TaskServiceException
+                    {
+                        if (changedTaskIds.contains(task.getId()))
+                        {
+                            synchronized (missingTaskIds)
+                            {
+                                missingTaskIds.remove(task.getId());
+                            }
+                            collector.handle(task);
+                        }
+                    }
+                });
+                taskCount = collector.getTaskCount();
+                
+                // A changed task that didn't come back was probably completed or deleted while we checked,
+                // but we can't be sure that nothing was missed, so look for it again next time.
+                if (!missingTaskIds.isEmpty())
+                {
+                    logger.fine(String.format("Didn't get %d of the changed tasks. Checking them again next time.", 
+                                              missingTaskIds.size()));
+                    return taskCount;
+                }
+            }
+            
+            toodledoUser.setLastTaskCheckTimestamp(checkStart);
+            return taskCount;
+        }
+        catch (TaskServiceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TaskServiceException(e);
+        }
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getStoredTasks(take2task.domain.User)
+     */
+    @Override
+    public Task[] getStoredTasks(User user) throws ToodledoException, TaskServiceException
+    {
+        ToodledoUser toodledoUser = (ToodledoUser) user;
+        
+        // The contexts and folders are only downloaded if they have changed.
+        AccountInfo accountInfo = getAccountInfo(user);
+        ContextSet contexts = toodledoUser.getContexts(accountInfo.getLastEditedContextTimestamp());
+        ContextSet folders = toodledoUser.getFolders(accountInfo.getLastEditedFolderTimestamp());
+        
+        List<Task> tasks = toodledoUser.getTaskStore().getAll();
+        for (Task task : tasks)
+        {
+            task.setAvailableContexts(contexts);
+            task.setAvailableFolders(folders);
+        }
+        return tasks.toArray(new Task[tasks.size()]);
+    }
+    
+    /**
+     * @see take2task.service.TaskService#updateTasks(take2task.domain.User, take2task.domain.Task[])
+     */
+    @Override
+    public int updateTasks(User user, Task[] tasks) throws ToodledoException, TaskServiceException
+    {
+        try
+        {
+            // Convert each task to URL encoded JSON, so that we know how big it will be in a request.
+            // Only send the fields that have changed, so that, say, a long note isn't sent again
+            // just because the priority changed.
+            String[] encodedTasks = new String[tasks.length];
+            for (int i = 0; i < tasks.length; i++)
+            {
+                encodedTasks[i] = URLEncoder.encode(toChangedFieldsJson(tasks[i]), "UTF-8");
+            }
+            
+            // The number of tasks in each request is learned, for each user, from how
+            // Toodledo has handled earlier requests.
+            BatchSizeController batchSize = ((ToodledoUser)user).getBatchSizeController();
+            
+            int updatedTaskCount = 0;
+            int chunkStart = 0;
+            while (chunkStart < tasks.length)
+            {
+                // Fill up a chunk with as many tasks as will fit in one request.
+                // URL encoded text is all ASCII, so its length is its size in bytes.
+                int maximumChunkSize = batchSize.getBatchSize();
+                int chunkEnd = chunkStart + 1; // Always send at least one task.
+                int chunkBytes = encodedTasks[chunkStart].length();
+                while (chunkEnd < tasks.length && 
+                       chunkEnd - chunkStart < maximumChunkSize &&
+                       chunkBytes + ENCODED_JSON_SEPARATOR.length() + encodedTasks[chunkEnd].length() <= MAXIMUM_UPDATE_BODY_BYTES)
+                {
+                    chunkBytes += ENCODED_JSON_SEPARATOR.length() + encodedTasks[chunkEnd].length();
+                    chunkEnd++;
+                }
+                
+                long startMillis = System.currentTimeMillis();
+                try
+                {
+                    int chunkUpdatedCount = updateTasksChunk(user, tasks, encodedTasks, chunkStart, chunkEnd);
+                    if (chunkUpdatedCount == chunkEnd - chunkStart)
+                    {
+                        batchSize.succeeded(System.currentTimeMillis() - startMillis);
+                    }
+                    else
+                    {
+                        batchSize.failed();
+                    }
+                    updatedTaskCount += chunkUpdatedCount;
+                    chunkStart = chunkEnd;
+                }
+                catch (TaskServiceException e)
+                {
+                    // If the request was too big, try again with a smaller chunk.
+                    // (Updating a task to the same values twice is harmless, so this is safe after a timeout.)
+                    if (!isTooBig(e) || !batchSize.failed())
+                    {
+                        throw e;
+                    }
+                    logger.fine(String.format("Update request failed (%s). Trying again with at most %d tasks.", 
+                                              e.getMessage(), batchSize.getBatchSize()));
+                }
+            }
+            
+            return updatedTaskCount;
+        }
+        catch (TaskServiceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TaskServiceException(e);
+        }
+    }
+ 
+    /**
+     * @see take2task.service.TaskService#getUpdateBatchSize(take2task.domain.User)
+     */
+    @Override
+    public int getUpdateBatchSize(User user)
+    {
+        return ((ToodledoUser)user).getBatchSizeController().getBatchSize();
+    }
+    
+    /**
+     * @see take2task.service.TaskService#deleteCompletedTasks(take2task.domain.User)
+     */
+    @Override
+    public int deleteCompletedTasks(User user) throws ToodledoException, TaskServiceException
+    {
+        return sweeper.sweep((ToodledoUser) user, getAccountInfo(user).getLastEditedTaskTimestamp());
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getLastTaskCheckTimestamp(take2task.domain.User)
+     */
+    @Override
+    public Timestamp getLastTaskCheckTimestamp(User user)
+    {
+        return ((ToodledoUser)user).getLastTaskCheckTimestamp();
+    }
+    
+    /**
+     * @see take2task.service.TaskService#getLastActivityTimestamp(take2task.domain.User)
+     */
+    @Override
+    public Timestamp getLastActivityTimestamp(User user)
+    {
+        AccountInfo accountInfo = ((ToodledoUser)user).getLastAccountInfo();
+        return (accountInfo == null) ? new Timestamp(0) : accountInfo.getLastEditedTaskTimestamp();
+    }
+    
+    // ---------- Private helper methods ----------
+
+    /**
+     * Return account info from Toodledo. This includes timestamps of when tasks, etc, 
+     * were last updated. We can use this to determine which tasks and other things
+     * we need to fetch.
+     * During a processing cycle, return the account info fetched when the cycle started,
+     * rather than asking Toodledo again.
+     * 
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    private AccountInfo getAccountInfo(User user) throws ToodledoException, TaskServiceException
+    {
+        AccountInfo cycleAccountInfo = ((ToodledoUser)user).getCycleAccountInfo();
+        if (cycleAccountInfo != null)
+        {
+            return cycleAccountInfo;
+        }
+        
+        final ToodledoUser toodledoUser = (ToodledoUser) user;
+        try
+        {
+            AccountInfo accountInfo = RetryingCaller.read(toodledoUser, new Callable<AccountInfo>()
+            {
+                public AccountInfo call() throws Exception
+                {
+                    String accountInfoRequest = ObjectFetcher.TOODLEDO_API_URL + "account/get.php?key=" + 
+                                                toodledoUser.getAuthenticationKey();
+                    return ObjectFetcher.request(accountInfoRequest, AccountInfo.class, toodledoUser.getDeadline(), true);
+                }
+            });
+            ((ToodledoUser)user).setLastAccountInfo(accountInfo);
+            return accountInfo;
+        }
+        catch (TaskServiceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TaskServiceException(e);
+        }        
+    }
+    
+    /**
+     * Return tasks from Toodledo matching the given criteria for the given user.
+     * 
+     * @param user  The user to get tasks for.
+     * @param modifiedOnly  If true, only get tasks modified since we last checked.
+     *                      If false, get all tasks.
+     */
+    private Task[] getTasks(User user, boolean modifiedOnly) 
+        throws ToodledoException, TaskServiceException
+    {
+        final List<Task> tasks = new ArrayList<Task>();
+        getTasks(user, modifiedOnly, new TaskHandler()
+        {
+            public void handle(Task task)
+            {
+                tasks.add(task);
+            }
+        });
+        return tasks.toArray(new Task[tasks.size()]);
+    }
+    
+    /**
+     * Download tasks from Toodledo matching the given criteria for the given user,
+     * handing each one to the given handler as soon as it has been read from the response.
+     * 
+     * @param user  The user to get tasks for.
+     * @param modifiedOnly  If true, only get tasks modified since we last checked.
+     *                      If false, get all tasks.
+     * @param handler  Receives each task.
+     * 
+     * @return The number of tasks handed to the handler.
+     */
+    private int getTasks(User user, boolean modifiedOnly, TaskHandler handler) 
+        throws ToodledoException, TaskServiceException
+    {
+        ToodledoUser toodledoUser = (ToodledoUser) user;
+        
+        // Ask Toodledo for account info, including timestamps of last changes.
+        AccountInfo accountInfo = getAccountInfo(user);
+        
+        // If we are only getting tasks modified since we last downloaded, and if no tasks have been modified, 
+        // then we don't need to do anything.
+        if (modifiedOnly && 
+            accountInfo.getLastEditedTaskTimestamp().getValue() < toodledoUser.getLastTaskDownloadTimestamp().getValue())
+        {
+            return 0;
+        }
+
+        //Build the parameters of the request for Toodledo. (The key is added each time the request is made.)
+        StringBuffer parameters = new StringBuffer();
+        parameters.append(';').append(Task.FIELDS);
+        
+        if (modifiedOnly)
+        {
+            parameters.append(";modafter=").append(toodledoUser.getLastTaskDownloadTimestamp().getValue());            
+        }
+        
+        parameters.append(";comp=0");
+
+        // Refresh the contexts and folders (if they have changed), the two in parallel. Wait for them before
+        // downloading the tasks, not while handing the tasks on: a download holds one of the permits for 
+        // requests to Toodledo until it has been read, so must never wait for another request.
+        Future<ContextSet> foldersFuture = refreshFolders(toodledoUser, accountInfo);
+        ContextSet contexts = toodledoUser.getContexts(accountInfo.getLastEditedContextTimestamp());
+        TaskCollector collector = new TaskCollector(toodledoUser, handler, contexts, getResult(foldersFuture), 
+                                                    modifiedOnly);
+        
+        // Make the request. A full download could be big, so get it a page at a time.
+        Timestamp downloadStart = new Timestamp(); // now
+        try
+        {
+            if (modifiedOnly)
+            {
+                requestTasks(toodledoUser, parameters.toString(), collector);
+            }
+            else
+            {
+                getPagedTasks(toodledoUser, parameters.toString(), collector);
+                
+                // We have every task (or getPagedTasks would have failed), so forget the ones
+                // that have been completed or deleted.
+                toodledoUser.getTaskStore().retainOnly(collector.getTaskIds());
+                toodledoUser.setLastTaskCheckTimestamp(downloadStart);
+            }
+            
+            if (collector.getOwnUpdateCount() > 0)
+            {
+                logger.fine(String.format("Left out %d tasks that haven't changed since we updated them.", 
+                                          collector.getOwnUpdateCount()));
+            }
+            
+            // Set the time that we last checked tasks to when we started downloading them,
+            // so that tasks edited during the download are fetched again next time.
+            toodledoUser.setLastTaskDownloadTimestamp(downloadStart);
+            
+            return collector.getTaskCount();
+        }
+        catch (TaskServiceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TaskServiceException(e);
+        }        
+    }
+    
+    /**
+     * Download all the tasks matching the given request a page at a time, several pages at once.
+     * 
+     * Tasks can be added, completed or deleted while we download, which moves the tasks after 
+     * them from one page to another. So each page starts a little before the previous page ended, 
+     * and must include the last task of the previous page, proving that no tasks slipped between 
+     * the two. If any page doesn't, download all the pages again, up to a limit. (Toodledo won't
+     * return more than a page of tasks in one request, so there is no downloading them in one go.)
+     * The collector drops tasks it has already seen, so none are handed on twice.
+     * 
+     * @param user  The user to get tasks for.
+     * @param parameters  The parameters of the request for the tasks, without any paging parameters.
+     * @param collector  Receives the tasks. It must drop tasks it has already been given.
+     * 
+     * @return The number of tasks that Toodledo said there were, when the last page was downloaded.
+     * 
+     * @throws TaskServiceException If we couldn't be sure of getting every task.
+     */
+    private int getPagedTasks(ToodledoUser user, String parameters, ObjectFetcher.ElementHandler<Task> collector) 
+        throws Exception
+    {
+        for (int pass = 1; pass <= MAXIMUM_PAGED_PASSES; pass++)
+        {
+            TaskPage lastPage = getAllPages(user, parameters, collector);
+            if (lastPage != null)
+            {
+                return lastPage.getTotal();
+            }
+            logger.fine("Tasks moved between pages while downloading them, so downloading them again.");
+        }
+        throw new TaskServiceException(String.format("Tasks kept moving between pages while downloading them, %d times.", 
+                                                     MAXIMUM_PAGED_PASSES));
+    }
+    
+    /**
+     * Download all the pages of tasks matching the given request, once.
+     * See getPagedTasks().
+     * 
+     * @return The last page, if the pages are proved to hold every task. Null if tasks might have been missed.
+     */
+    private TaskPage getAllPages(ToodledoUser user, String parameters, ObjectFetcher.ElementHandler<Task> collector) 
+        throws Exception
+    {
+        TaskPage previousPage = new TaskPage(user, parameters, 0, collector).call();
+        int maximumTotal = previousPage.getTotal();
+        
+        LinkedList<Future<TaskPage>> runningPages = new LinkedList<Future<TaskPage>>();
+        int nextStart = TASK_PAGE_SIZE - TASK_PAGE_OVERLAP;
+        try
+        {
+            while (true)
+            {
+                // Keep up to the maximum number of pages downloading at once. The total can grow while 
+                // we download, so keep going until we have covered it, and until a page comes back
+                // with room to spare, which is the only proof that there are no more tasks after it.
+                while (runningPages.size() < MAXIMUM_PARALLEL_PAGES && 
+                       (nextStart + TASK_PAGE_OVERLAP < maximumTotal || (runningPages.isEmpty() && previousPage.isFull())))
+                {
+                    runningPages.addLast(executor.submit(new TaskPage(user, parameters, nextStart, collector)));
+                    nextStart += TASK_PAGE_SIZE - TASK_PAGE_OVERLAP;
+                }
+                if (runningPages.isEmpty())
+                {
+                    return previousPage; // The last page reached the end of the tasks.
+                }
+                
+                // Check the pages in order, as each one finishes.
+                TaskPage page = getResult(runningPages.removeFirst());
+                maximumTotal = Math.max(maximumTotal, page.getTotal());
+                if (!page.follows(previousPage) || page.isPastTotal())
+                {
+                    return null;
+                }
+                previousPage = page;
+            }
+        }
+        finally
+        {
+            for (Future<TaskPage> page : runningPages)
+            {
+                page.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Download tasks from Toodledo, handing each one to the given handler as soon as it has been read.
+     * If the download fails in a way that might go away by itself, try it again.
+     * 
+     * @param user  The user to get tasks for.
+     * @param parameters  The parameters of the request, apart from the key.
+     * @param handler  Receives each task. It may be given the same task more than once,
+     *                 if the download is tried again.
+     * 
+     * @return  The meta-data that Toodledo returns before the tasks.
+     */
+    private static TaskListInfo requestTasks(final ToodledoUser user, final String parameters, 
+                                             final ObjectFetcher.ElementHandler<Task> handler) 
+        throws ToodledoException, TaskServiceException
+    {
+        return RetryingCaller.read(user, new Callable<TaskListInfo>()
+        {
+            public TaskListInfo call() throws Exception
+            {
+                String request = ObjectFetcher.TOODLEDO_API_URL + "tasks/get.php?key=" + user.getAuthenticationKey() + parameters;
+                return ObjectFetcher.requestArray(request, TaskListInfo.class, Task.class, handler, user.getDeadline(), true);
+            }
+        });
+    }
+    
+    /**
+     * Ask Toodledo to update one chunk of tasks, in a single request.
+     * 
+     * Remember the modified timestamp that Toodledo gives each task, so that the next download
+     * of modified tasks can leave out the ones that haven't changed since.
+     * 
+     * @param user  The user whose tasks they are.
+     * @param tasks  The tasks to update.
+     * @param encodedTasks  The same tasks, each one as URL encoded JSON.
+     * @param start  Index of the first task in the chunk.
+     * @param end  Index after the last task in the chunk.
+     * 
+     * @return The number of tasks that Toodledo updated.
+     */
+    private int updateTasksChunk(User user, Task[] tasks, String[] encodedTasks, int start, int end) 
+        throws ToodledoException, TaskServiceException
+    {
+        // Build up the body of the request to update the tasks. (The key is added each time the request is made.)
+        final StringBuffer tasksParameter = new StringBuffer();
+        tasksParameter.append("&tasks=").append(ENCODED_JSON_ARRAY_START);
+        for (int i = start; i < end; i++)
+        {
+            if (i > start)
+            {
+                tasksParameter.append(ENCODED_JSON_SEPARATOR);
+            }
+            tasksParameter.append(encodedTasks[i]);
+        }
+        tasksParameter.append(ENCODED_JSON_ARRAY_END);
+        
+        // Ask Toodledo to update the tasks.
+        final ToodledoUser toodledoUser = (ToodledoUser) user;
+        Task[] updatedTasks = RetryingCaller.write(toodledoUser, new Callable<Task[]>()
+        {
+            public Task[] call() throws Exception
+            {
+                String updateRequest = ObjectFetcher.TOODLEDO_API_URL + "tasks/edit.php";
+                String body = "key=" + toodledoUser.getAuthenticationKey() + tasksParameter;
+                return ObjectFetcher.post(updateRequest, body, Task[].class, toodledoUser.getDeadline());
+            }
+        });
+        
+        // Toodledo returns the id and new modified timestamp of each task it updated.
+        // What we sent is now what Toodledo has, so store the task as it is now.
+        Map<Long, Task> chunkTasks = new HashMap<Long, Task>();
+        for (int i = start; i < end; i++)
+        {
+            chunkTasks.put(tasks[i].getId(), tasks[i]);
+        }
+        for (Task updatedTask : updatedTasks)
+        {
+            Task task = chunkTasks.get(updatedTask.getId());
+            if (task != null)
+            {
+                toodledoUser.addOwnUpdate(task.getId(), updatedTask.getModifiedTimestamp());
+                toodledoUser.getTaskStore().putUpdated(task, updatedTask.getModifiedTimestamp());
+            }
+        }
+        
+        int chunkSize = end - start;
+        if (updatedTasks.length != chunkSize)
+        {
+            logger.warning(String.format("We asked Toodledo to update %d tasks, but it only updated %d tasks.", 
+                                         chunkSize, updatedTasks.length));
+        }
+        return updatedTasks.length;
+    }
+    
+    /**
+     * Return the JSON for updating the given task in Toodledo: its id and the fields that have changed.
+     */
+    private static String toChangedFieldsJson(Task task)
+    {
+        JsonObject allFields = gson.toJsonTree(task).getAsJsonObject();
+        JsonObject changedFields = new JsonObject();
+        changedFields.add("id", allFields.get("id"));
+        for (String name : task.getChangedFieldNames())
+        {
+            // GSON leaves out null fields. They can't have been changed to null, so there is nothing to send.
+            JsonElement value = allFields.get(name);
+            if (value != null)
+            {
+                changedFields.add(name, value);
+            }
+        }
+        return gson.toJson(changedFields);
+    }
+    
+    /**
+     * Return true if the given exception means that an update request failed because it was too big:
+     * Toodledo's web server said so, or the request timed out.
+     */
+    private static boolean isTooBig(TaskServiceException e)
+    {
+        Throwable cause = e.getCause();
+        if (cause instanceof HttpStatusException)
+        {
+            // Updates are POSTed, so a request that is too big usually has too big a body.
+            int statusCode = ((HttpStatusException) cause).getStatusCode();
+            return statusCode == HttpStatusException.REQUEST_ENTITY_TOO_LARGE || 
+                   statusCode == HttpStatusException.REQUEST_URI_TOO_LONG;
+        }
+        return cause instanceof SocketTimeoutException;
+    }
+    
+    /**
+     * Start refreshing the folders for the given user in the background.
+     * They are only downloaded if they have changed.
+     */
+    private Future<ContextSet> refreshFolders(final ToodledoUser user, final AccountInfo accountInfo)
+    {
+        return executor.submit(new Callable<ContextSet>()
+        {
+            public ContextSet call() throws TaskServiceException
+            {
+                return user.getFolders(accountInfo.getLastEditedFolderTimestamp());
+            }
+        });
+    }
+    
+    /**
+     * Wait for the given background request, and return its result.
+     * Rethrow any exception that the request threw.
+     */
+    private static <T> T getResult(Future<T> future) throws TaskServiceException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TaskServiceException("Interrupted while waiting for Toodledo.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TaskServiceException)
+            {
+                throw (TaskServiceException) e.getCause();
+            }
+            throw new TaskServiceException(e.getCause());
+        }
+    }
+    
+    // ---------- Private helper classes ----------
+    
+    /**
+     * Receives tasks as they are downloaded, possibly from several pages at once, 
+     * and hands them on one at a time. Sets the contexts and folders of each task, 
+     * and drops any task that has already been handed on.
+     * 
+     * Also keeps the task store up to date with the tasks.
+     * 
+     * Can also drop tasks that haven't changed since we last updated them ourselves. There is nothing
+     * for us to do to such a task, because we did it last time.
+     */
+    private static class TaskCollector implements ObjectFetcher.ElementHandler<Task>
+    {
+        private final ToodledoUser user;
+        private final TaskHandler handler;
+        private final ContextSet contexts;
+        private final ContextSet folders;
+        private final boolean isDroppingOwnUpdates;
+        private final Set<Long> taskIds = new HashSet<Long>();
+        private int handedOnCount;
+        private int ownUpdateCount;
+        
+        /**
+         * Constructor.
+         * 
+         * @param user  The user whose tasks they are.
+         * @param handler  Receives the tasks.
+         * @param contexts  The contexts to set in each task.
+         * @param folders  The folders to set in each task.
+         * @param isDroppingOwnUpdates  True to drop tasks that haven't changed since we last updated them.
+         */
+        TaskCollector(ToodledoUser user, TaskHandler handler, 
+                      ContextSet contexts, ContextSet folders,
+                      boolean isDroppingOwnUpdates)
+        {
+            this.user = user;
+            this.handler = handler;
+            this.contexts = contexts;
+            this.folders = folders;
+            this.isDroppingOwnUpdates = isDroppingOwnUpdates;
+        }
+        
+        public synchronized void handle(Task task) throws TaskServiceException
+        {
+            if (!taskIds.add(task.getId()))
+            {
+                return; // Already handed on.
+            }
+            
+            // Store the task before anything modifies it.
+            user.getTaskStore().put(task);
+            
+            // Each of our updates is only looked for once, so the user doesn't keep any of them for long.
+            boolean isOwnUpdate = user.removeOwnUpdate(task.getId(), task.getModifiedTimestamp());
+            if (isOwnUpdate && isDroppingOwnUpdates)
+            {
+                ownUpdateCount++;
+                return;
+            }
+            
+            // Insert the set of available contexts and folders (for this user) into every task.
+            task.setAvailableContexts(contexts);
+            task.setAvailableFolders(folders);
+            handOn(task);
+        }
+        
+        /**
+         * Return the number of tasks handed on.
+         */
+        synchronized int getTaskCount()
+        {
+            return handedOnCount;
+        }
+        
+        /**
+         * Return the number of tasks dropped because they hadn't changed since we last updated them.
+         */
+        synchronized int getOwnUpdateCount()
+        {
+            return ownUpdateCount;
+        }
+        
+        /**
+         * Return the ids of all the tasks received, whether or not they were handed on.
+         */
+        synchronized Set<Long> getTaskIds()
+        {
+            return new HashSet<Long>(taskIds);
+        }
+        
+        /**
+         * Hand on the given task.
+         */
+        private void handOn(Task task) throws TaskServiceException
+        {
+            handedOnCount++;
+            handler.handle(task);
+        }
+    } // end of class TaskCollector
+    
+    /**
+     * One page of a paged task download.
+     */
+    private static class TaskPage implements Callable<TaskPage>, ObjectFetcher.ElementHandler<Task>
+    {
+        private final ToodledoUser user;
+        private final String parameters;
+        private final ObjectFetcher.ElementHandler<Task> collector;
+        private final int start;
+        private final Set<Long> taskIds = new HashSet<Long>();
+        private long lastTaskId;
+        private TaskListInfo info;
+        
+        /**
+         * Constructor.
+         * 
+         * @param user  The user to get tasks for.
+         * @param parameters  The parameters of the request for all the tasks, without any paging parameters.
+         * @param start  Index of the first task in the page.
+         * @param collector  Receives the tasks.
+         */
+        TaskPage(ToodledoUser user, String parameters, int start, ObjectFetcher.ElementHandler<Task> collector)
+        {
+            this.user = user;
+            this.parameters = parameters + ";start=" + start + ";num=" + TASK_PAGE_SIZE;
+            this.start = start;
+            this.collector = collector;
+        }
+        
+        /**
+         * Download the page.
+         */
+        public TaskPage call() throws Exception
+        {
+            info = requestTasks(user, parameters, this);
+            return this;
+        }
+        
+        public void handle(Task task) throws TaskServiceException
+        {
+            taskIds.add(task.getId());
+            lastTaskId = task.getId();
+            collector.handle(task);
+        }
+        
+        /**
+         * Return the total number of tasks, across all pages, when this page was downloaded.
+         */
+        int getTotal()
+        {
+            return (info == null) ? 0 : info.getTotal();
+        }
+        
+        /**
+         * Return true if this page has as many tasks as a page can hold,
+         * so there might be more tasks after it.
+         */
+        boolean isFull()
+        {
+            return taskIds.size() >= TASK_PAGE_SIZE;
+        }
+        
+        /**
+         * Return true if this page is full, but reaches past the total number of tasks that came
+         * with it, so it can't be trusted. (Paging on past the end would never stop.)
+         */
+        boolean isPastTotal()
+        {
+            return isFull() && start + TASK_PAGE_SIZE > getTotal();
+        }
+        
+        /**
+         * Return true if there can't be any tasks missing between the given page and this one.
+         */
+        boolean follows(TaskPage previousPage)
+        {
+            return !previousPage.isFull() || taskIds.contains(previousPage.lastTaskId);
+        }
+    } // end of class TaskPage
+}
\ No newline at end of file
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo.domain;
+
+/**
+ * The first element of the JSON array that Toodledo returns when we get tasks.
+ * It is not a task, but says how many tasks there are.
+ * GSON converts it to this class.
+ */
+public class TaskListInfo
+{
+    private int num; // Must be called num for GSON to be able to work its magic.
+    private int total; // Must be called total for GSON to be able to work its magic.
+
+    /**
+     * Return the number of tasks in this response.
+     */
+    public int getCount()
+    {
+        return num;
+    }
+
+    /**
+     * Return the number of tasks matching the request, across all pages.
+     */
+    public int getTotal()
+    {
+        return total;
+    }
+}
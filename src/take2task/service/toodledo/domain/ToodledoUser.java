@@ -1,345 +1,629 @@
-/*
- * Copyright 2011 by Ian Daniel.
- * All rights reserved.
- */
-
-package take2task.service.toodledo.domain;
-
-import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.logging.Logger;
-
-import take2task.domain.Context;
-import take2task.domain.ContextSet;
-import take2task.domain.Timestamp;
-import take2task.domain.User;
-import take2task.service.TaskServiceException;
-import take2task.service.toodledo.ObjectFetcher;
-import take2task.service.toodledo.ToodledoException;
-
-/**
- * A Toodledo user.
- */
-public class ToodledoUser implements User
-{
-    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
-
-    private static final String APP_ID = "Take2Task";
-    private static final String APP_TOKEN = "api4d9e53ec97abf"; // token for "Take2Task" app
-
-    private String userId;
-    private String password;
-    
-    // When we last downloaded stuff.
-    private Timestamp lastTaskDownloadTimestamp = new Timestamp(0);
-    private Timestamp lastContextDownloadTimestamp = new Timestamp(0);
-    private Timestamp lastFolderDownloadTimestamp = new Timestamp(0);
-    
-    // The contexts and folders for this user (cached).
-    private ContextSet contexts;
-    private ContextSet folders;
-
-    /**
-     * Session token used for all calls to Toodledo. (The authentication key is based on it.)
-     * Cached in memory and on disk.
-     */
-    private SessionToken sessionToken;
-    
-    /**
-     * Authentication key used for all calls to Toodledo.
-     * Cached in memory.
-     */
-    private String authenticationKey;
-
-    /**
-     * Constructor.
-     * 
-     * @param userId Toodledo user id. Not username, but instead the Unique ID
-     *               found on the Toodledo Account Settings page.
-     * @param password Toodledo password.
-     */
-    public ToodledoUser(String userId, String password)
-    {
-        this.userId = userId;
-        this.password = password;
-    }
-
-    /**
-     * Return the last time we downloaded tasks from Toodledo for this user.
-     */
-    public Timestamp getLastTaskDownloadTimestamp()
-    {
-        return lastTaskDownloadTimestamp;
-    }
-    
-    /**
-     * Set the time we last downloaded tasks to now.
-     */
-    public void updateLastTaskDownloadTimestamp()
-    {
-        lastTaskDownloadTimestamp = new Timestamp(); // now
-    }
-    
-    /**
-     * Return a Toodledo authentication key.
-     * The session token that the authentication key is based on is valid for 4 hours,
-     * and Toodledo limits how often you can ask for a new one. So we cache the session
-     * token, both in memory and on the file system.
-     *
-     * @throws ToodledoException If Toodledo responded with an error message.
-     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
-     */
-    public String getAuthenticationKey()
-        throws ToodledoException, TaskServiceException
-    {
-        try
-        {
-            // Do we have a cached authentication key (built from a cached session token)?
-            String key = getCachedAuthenticationKey();
-            if (key != null)
-            {
-                logger.finer("Authentication key: " + key);
-                return key;
-            }
-
-            // We don't have a cached session token, so ask Toodledo for one.
-            // Build up the URL to request a session token.
-            StringBuffer tokenRequest = new StringBuffer(ObjectFetcher.TOODLEDO_API_URL);
-            tokenRequest.append("account/token.php?");
-            tokenRequest.append("userid=").append(userId);
-            tokenRequest.append(";");
-            tokenRequest.append("appid=").append(APP_ID);
-            tokenRequest.append(";");
-            tokenRequest.append("sig=").append(md5(userId + APP_TOKEN));
-            
-            // Request a session token.
-            sessionToken = ObjectFetcher.request(tokenRequest.toString(), SessionToken.class);
-            sessionToken.setUserId(userId);
-            sessionToken.save(); // Save it to disk.
-            logger.finer("Received a new session token from Toodledo and saved it to disk.");            
-            generateAuthenticationKey();
-            logger.finer("Authentication key: " + authenticationKey);
-            return authenticationKey;
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }        
-    }
-    
-    /**
-     * Look for a cached session token and hence authentication key. Look in memory first,
-     * and on disk if not cached in memory.
-     *
-     * @return The cached authentication key, or null if there is not a cached session token
-     * and hence not a cached authentication key.
-     * 
-     * @throws NoSuchAlgorithmException  If an error generating an MD5 hash. 
-     * @throws IOException  On any I/O error loading a session token from disk.
-     * @throws ClassNotFoundException  When loading a session token from disk.
-     */
-    private String getCachedAuthenticationKey() throws NoSuchAlgorithmException, IOException, ClassNotFoundException
-    {
-        // Is there a session token cached in memory?
-        if (sessionToken != null)
-        {
-            if (sessionToken.isExpired())
-            {
-                logger.fine("Session token cached in memory has expired.");
-                sessionToken = null;
-                authenticationKey = null;
-            }
-            else
-            {
-                logger.fine("Session token cached in memory is valid.");
-
-                    // In-memory session token is non-null and current. Whenever we cache a session token
-                // in memory, we also cache the authentication key (only in memory). So if the session
-                // token is non-null, so should the authentication key be non-null. Check it.
-                //
-                // BTW, an alternate design would have the authentication key stored in the session token.
-                // We don't do that because the authentication key includes the password. Session tokens
-                // are stored on disk, so we don't want to store the authentication key there. There are 
-                // ways of serialising objects so that some fields aren't serialised, but it did seem to
-                // point anyway to a poor solution.
-                assert authenticationKey != null : "Session token cached in memory, but no authentication key.";
-                return authenticationKey;
-            }
-        }
-        
-        // No session token cached in memory. Try out on disk.
-        SessionToken restoredSessionToken = SessionToken.load();
-        if (restoredSessionToken == null)
-        {
-            logger.fine("No session token available on disk.");
-            return null;
-        }
-        else if (restoredSessionToken.getUserId().equals(userId) && !restoredSessionToken.isExpired())
-        {
-            logger.fine("Using session token loaded from disk.");
-            sessionToken = restoredSessionToken;
-            generateAuthenticationKey();
-            return authenticationKey;
-        }
-        
-        // There is not a cached session token (nor authentication key).
-        logger.fine("No cached session token.");
-        return null;
-    }
-    
-    /**
-     * Generate an authentication key from this object's session token (sessionToken field).
-     * The session token must not be null, and this method asserts if it is null.
-     * Store the authentication key to the object's authenticationKey field.
-     * 
-     * @throws NoSuchAlgorithmException  If an error generating an MD5 hash. 
-     */
-    private void generateAuthenticationKey() throws NoSuchAlgorithmException
-    {
-        assert sessionToken != null : "Generating authentication key, but no session object.";
-        
-        authenticationKey = md5(md5(password) + APP_TOKEN + sessionToken.getValue());
-        assert authenticationKey != null : "Generated authentication key, but it is null.";
-    }
-    
-    /**
-     * Return an MD5 hash of the given string.
-     * 
-     * @throws NoSuchAlgorithmException  If a MessageDigest error.
-     */
-    private static String md5(String str) throws NoSuchAlgorithmException
-    {
-        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-        messageDigest.update(str.getBytes(), 0, str.length());
-        byte[] digest = messageDigest.digest();
-
-        // Convert the digest to hex.
-        StringBuffer hash = new StringBuffer();
-        for (int i = 0; i < digest.length; i++)
-        {
-            String hex = Integer.toHexString(0xff & digest[i]);
-            if (hex.length() == 1)
-                hash.append('0');
-            hash.append(hex);
-        }   
-        
-        return hash.toString();
-    }
-    
-    /**
-     * Return the last time we downloaded contexts from Toodledo for this user.
-     */
-    private Timestamp getLastContextDownloadTimestamp()
-    {
-        return lastContextDownloadTimestamp;
-    }
-    
-    /**
-     * Set the time we last downloaded contexts to now.
-     */
-    private void updateLastContextDownloadTimestamp()
-    {
-        lastContextDownloadTimestamp = new Timestamp(); // now
-    }
-    
-    /**
-     * Return the last time we downloaded folders from Toodledo for this user.
-     */
-    private Timestamp getLastFolderDownloadTimestamp()
-    {
-        return lastFolderDownloadTimestamp;
-    }
-    
-    /**
-     * Set the time we last downloaded folders to now.
-     */
-    private void updateLastFolderDownloadTimestamp()
-    {
-        lastFolderDownloadTimestamp = new Timestamp(); // now
-    }
-    
-    /**
-     * Return the contexts for this user.
-     * Only get them from Toodledo if they haven't changed from when we last downloaded them.
-     * 
-     * @param lastEditedContextTimestamp  When Toodledo says that the contexts last changed.
-     * 
-     * @return  The contexts for this user.
-     * 
-     * @throws ToodledoException If Toodledo responded with an error message.
-     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
-     */
-    public ContextSet getContexts(Timestamp lastEditedContextTimestamp) 
-        throws ToodledoException, TaskServiceException
-    {
-        // If the contexts haven't changed since we last downloaded them, return the cached ones.
-        if (contexts != null && 
-            lastEditedContextTimestamp.getValue() < getLastContextDownloadTimestamp().getValue())
-        {
-            return contexts;
-        }
-        
-        // Ask Toodledo for the contexts for this user.
-        try
-        {
-            String request = ObjectFetcher.TOODLEDO_API_URL + "contexts/get.php?key=" + getAuthenticationKey();
-            contexts = new ContextSet(ObjectFetcher.request(request, Context[].class));
-            logger.info("Downloaded contexts: " + contexts);            
-            updateLastContextDownloadTimestamp();
-            return contexts;
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }
-    }
-    
-    /**
-     * Return the folders for this user.
-     * Only get them from Toodledo if they haven't changed from when we last downloaded them.
-     * 
-     * @param lastEditedContextTimestamp  When Toodledo says that the folders last changed.
-     * 
-     * @return  The folders for this user.
-     * 
-     * @throws ToodledoException If Toodledo responded with an error message.
-     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
-     */
-    public ContextSet getFolders(Timestamp lastEditedFolderTimestamp) 
-        throws ToodledoException, TaskServiceException
-    {
-        // If the contexts haven't changed since we last downloaded them, return the cached ones.
-        if (folders != null && 
-            lastEditedFolderTimestamp.getValue() < getLastFolderDownloadTimestamp().getValue())
-        {
-            return folders;
-        }
-        
-        // Ask Toodledo for the folders for this user.
-        try
-        {
-            String request = ObjectFetcher.TOODLEDO_API_URL + "folders/get.php?key=" + getAuthenticationKey();
-            folders = new ContextSet(ObjectFetcher.request(request, Context[].class));
-            logger.info("Downloaded folders: " + folders);            
-            updateLastFolderDownloadTimestamp();
-            return folders;
-        }
-        catch (TaskServiceException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new TaskServiceException(e);
-        }        
-    }
-}
+/*
+ * Copyright 2011 by Ian Daniel.
+ * All rights reserved.
+ */
+
+package take2task.service.toodledo.domain;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import take2task.domain.Context;
+import take2task.domain.ContextSet;
+import take2task.domain.Timestamp;
+import take2task.domain.User;
+import take2task.service.TaskServiceException;
+import take2task.service.toodledo.BatchSizeController;
+import take2task.service.toodledo.CircuitBreaker;
+import take2task.service.toodledo.Deadline;
+import take2task.service.toodledo.ObjectFetcher;
+import take2task.service.toodledo.RetryingCaller;
+import take2task.service.toodledo.TaskStore;
+import take2task.service.toodledo.ToodledoException;
+import take2task.service.toodledo.ToodledoService;
+
+/**
+ * A Toodledo user.
+ * Holds all the per-account state (session token, timestamps, cached tasks, contexts and folders),
+ * so one of these must never be shared between accounts. The methods that touch the cached
+ * session token are synchronized, so that the stages of one processing cycle may use the
+ * same user from different threads.
+ */
+public class ToodledoUser implements User
+{
+    private static Logger logger = Logger.getLogger("take2task.service.toodledo");
+
+    private static final String APP_ID = "Take2Task";
+    private static final String APP_TOKEN = "api4d9e53ec97abf"; // token for "Take2Task" app
+
+    private String userId;
+    private String password;
+    
+    // Names of the timestamps kept in the task store.
+    private static final String LAST_TASK_DOWNLOAD = "lastTaskDownload";
+    private static final String LAST_TASK_CHECK = "lastTaskCheck";
+    private static final String LAST_CONTEXT_DOWNLOAD = "lastContextDownload";
+    private static final String LAST_FOLDER_DOWNLOAD = "lastFolderDownload";
+    private static final String LAST_COMPLETED_SWEEP = "lastCompletedSweep";
+    
+    // What we know about this user's tasks, contexts and folders, and when we last downloaded them.
+    // Kept on disk, so that we can carry on where we left off after a restart.
+    private final TaskStore taskStore;
+    
+    // The contexts and folders for this user (cached).
+    // They can be refreshed in parallel, so each has its own lock.
+    private ContextSet contexts;
+    private ContextSet folders;
+    private final Object contextsLock = new Object();
+    private final Object foldersLock = new Object();
+    
+    // Held while asking Toodledo for a new session token, so that only one is asked for at a time.
+    // Not this object's own lock, so that the rest of the user isn't held up while we wait for Toodledo.
+    private final Object sessionTokenRequestLock = new Object();
+    
+    // The account info that Toodledo most recently gave us for this user.
+    private volatile AccountInfo lastAccountInfo;
+    
+    // The account info for the current processing cycle, or null if not in a cycle.
+    private volatile AccountInfo cycleAccountInfo;
+    
+    // When the current processing cycle must have finished by, or null if not in a cycle.
+    private volatile Deadline cycleDeadline;
+    
+    // Learns how many tasks to send in each update request for this user.
+    private final BatchSizeController batchSizeController = 
+        new BatchSizeController(ToodledoService.MAXIMUM_TASK_UPDATE_COUNT);
+    
+    // Stops us calling Toodledo for this user while it is unavailable.
+    private final CircuitBreaker circuitBreaker;
+    
+    // The modified timestamp that Toodledo gave each task when we last updated it, by task id.
+    // While a task still has that timestamp, nobody else has changed it.
+    private final ConcurrentMap<Long, Long> ownUpdateTimestamps = new ConcurrentHashMap<Long, Long>();
+    
+    // When we last started to delete completed tasks, as a system time.
+    private volatile long lastCompletedSweepAttemptMillis;
+
+    /**
+     * Session token used for all calls to Toodledo. (The authentication key is based on it.)
+     * Cached in memory and on disk.
+     */
+    private SessionToken sessionToken;
+    
+    /**
+     * Authentication key used for all calls to Toodledo.
+     * Cached in memory.
+     */
+    private String authenticationKey;
+
+    /**
+     * Constructor.
+     * 
+     * @param userId Toodledo user id. Not username, but instead the Unique ID
+     *               found on the Toodledo Account Settings page.
+     * @param password Toodledo password.
+     */
+    public ToodledoUser(String userId, String password)
+    {
+        this.userId = userId;
+        this.password = password;
+        this.circuitBreaker = new CircuitBreaker(userId);
+        this.taskStore = new TaskStore(userId);
+        this.contexts = taskStore.getContexts();
+        this.folders = taskStore.getFolders();
+    }
+
+    /**
+     * Return the Toodledo user id.
+     */
+    public String getUserId()
+    {
+        return userId;
+    }
+    
+    /**
+     * Return the last time we downloaded tasks from Toodledo for this user.
+     */
+    public Timestamp getLastTaskDownloadTimestamp()
+    {
+        return taskStore.getTimestamp(LAST_TASK_DOWNLOAD);
+    }
+    
+    /**
+     * Set the time we last downloaded tasks.
+     * 
+     * @param timestamp  When the download started.
+     */
+    public void setLastTaskDownloadTimestamp(Timestamp timestamp)
+    {
+        taskStore.setTimestamp(LAST_TASK_DOWNLOAD, timestamp);
+    }
+    
+    /**
+     * Return the last time we checked all tasks in Toodledo for this user,
+     * by downloading them all or by reconciling them with the task store.
+     */
+    public Timestamp getLastTaskCheckTimestamp()
+    {
+        return taskStore.getTimestamp(LAST_TASK_CHECK);
+    }
+    
+    /**
+     * Set the time we last checked all tasks.
+     * 
+     * @param timestamp  When the check started.
+     */
+    public void setLastTaskCheckTimestamp(Timestamp timestamp)
+    {
+        taskStore.setTimestamp(LAST_TASK_CHECK, timestamp);
+    }
+    
+    /**
+     * Return the account info that Toodledo most recently gave us for this user,
+     * or null if we haven't asked for it yet.
+     */
+    public AccountInfo getLastAccountInfo()
+    {
+        return lastAccountInfo;
+    }
+    
+    /**
+     * Store the account info that Toodledo has just given us for this user.
+     */
+    public void setLastAccountInfo(AccountInfo accountInfo)
+    {
+        lastAccountInfo = accountInfo;
+    }
+    
+    /**
+     * Return the account info for the current processing cycle, 
+     * or null if we are not in a cycle.
+     */
+    public AccountInfo getCycleAccountInfo()
+    {
+        return cycleAccountInfo;
+    }
+    
+    /**
+     * Set the account info for the current processing cycle.
+     * 
+     * @param accountInfo  The account info, or null to end the cycle.
+     */
+    public void setCycleAccountInfo(AccountInfo accountInfo)
+    {
+        cycleAccountInfo = accountInfo;
+    }
+    
+    /**
+     * Return when a request made now for this user must have finished by:
+     * the end of the current processing cycle, or a default time from now if not in a cycle.
+     */
+    public Deadline getDeadline()
+    {
+        Deadline deadline = cycleDeadline;
+        return (deadline == null) ? new Deadline(Deadline.DEFAULT_REQUEST_TIMEOUT_MILLIS) : deadline;
+    }
+    
+    /**
+     * Set when the current processing cycle must have finished by.
+     * 
+     * @param deadline  The deadline, or null to end the cycle.
+     */
+    public void setCycleDeadline(Deadline deadline)
+    {
+        cycleDeadline = deadline;
+    }
+    
+    /**
+     * Return the controller that learns how many tasks to send in each update request 
+     * for this user.
+     */
+    public BatchSizeController getBatchSizeController()
+    {
+        return batchSizeController;
+    }
+    
+    /**
+     * Return the circuit breaker that stops us calling Toodledo for this user while it is unavailable.
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+    
+    /**
+     * Return what we know about this user's tasks.
+     */
+    public TaskStore getTaskStore()
+    {
+        return taskStore;
+    }
+    
+    /**
+     * Remember that we have just updated the given task, and the modified timestamp
+     * that Toodledo gave it as a result.
+     */
+    public void addOwnUpdate(long taskId, Timestamp modified)
+    {
+        ownUpdateTimestamps.put(taskId, modified.getValue());
+    }
+    
+    /**
+     * Return true if the given task was last modified by our own update. Either way,
+     * forget the update, so that each update is only recognised once.
+     */
+    public boolean removeOwnUpdate(long taskId, Timestamp modified)
+    {
+        Long ownUpdateTimestamp = ownUpdateTimestamps.remove(taskId);
+        return ownUpdateTimestamp != null && ownUpdateTimestamp.longValue() == modified.getValue();
+    }
+    
+    /**
+     * Return when we last downloaded completed tasks and deleted them all.
+     */
+    public Timestamp getLastCompletedSweepTimestamp()
+    {
+        return taskStore.getTimestamp(LAST_COMPLETED_SWEEP);
+    }
+    
+    /**
+     * Set when we last downloaded completed tasks and deleted them all.
+     */
+    public void setLastCompletedSweepTimestamp(Timestamp timestamp)
+    {
+        taskStore.setTimestamp(LAST_COMPLETED_SWEEP, timestamp);
+    }
+    
+    /**
+     * Return when we last started to delete completed tasks, as a system time. Zero if we never have.
+     */
+    public long getLastCompletedSweepAttemptMillis()
+    {
+        return lastCompletedSweepAttemptMillis;
+    }
+    
+    /**
+     * Set when we last started to delete completed tasks, as a system time.
+     */
+    public void setLastCompletedSweepAttemptMillis(long millis)
+    {
+        lastCompletedSweepAttemptMillis = millis;
+    }
+    
+    /**
+     * Return a Toodledo authentication key.
+     * The session token that the authentication key is based on is valid for 4 hours,
+     * and Toodledo limits how often you can ask for a new one. So we cache the session
+     * token, both in memory and on the file system.
+     * 
+     * A new session token is asked for just once, without trying again if that fails.
+     * This is always called from within a call made through RetryingCaller, which
+     * tries the whole call again, key and all.
+     *
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    public String getAuthenticationKey()
+        throws ToodledoException, TaskServiceException
+    {
+        try
+        {
+            // Do we have a cached authentication key (built from a cached session token)?
+            String key = getCachedAuthenticationKey();
+            if (key != null)
+            {
+                logger.finer("Authentication key: " + key);
+                return key;
+            }
+
+            synchronized (sessionTokenRequestLock)
+            {
+                // Another thread may have got a new session token while we waited.
+                key = getCachedAuthenticationKey();
+                if (key != null)
+                {
+                    logger.finer("Authentication key: " + key);
+                    return key;
+                }
+                
+                // We don't have a cached session token, so ask Toodledo for one.
+                // Build up the URL to request a session token.
+                StringBuffer tokenRequest = new StringBuffer(ObjectFetcher.TOODLEDO_API_URL);
+                tokenRequest.append("account/token.php?");
+                tokenRequest.append("userid=").append(userId);
+                tokenRequest.append(";");
+                tokenRequest.append("appid=").append(APP_ID);
+                tokenRequest.append(";");
+                tokenRequest.append("sig=").append(md5(userId + APP_TOKEN));
+                
+                // Request a session token.
+                SessionToken newSessionToken = ObjectFetcher.request(tokenRequest.toString(), SessionToken.class, 
+                                                                     getDeadline(), false);
+                newSessionToken.setUserId(userId);
+                newSessionToken.save(); // Save it to disk.
+                logger.finer("Received a new session token from Toodledo and saved it to disk.");            
+                key = useSessionToken(newSessionToken);
+                logger.finer("Authentication key: " + key);
+                return key;
+            }
+        }
+        catch (TaskServiceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TaskServiceException(e);
+        }        
+    }
+    
+    /**
+     * Throw away the session token, in memory and on disk, because Toodledo no longer accepts
+     * the authentication key based on it. The next call to getAuthenticationKey() asks
+     * Toodledo for a new session token.
+     */
+    public synchronized void discardAuthenticationKey()
+    {
+        sessionToken = null;
+        authenticationKey = null;
+        try
+        {
+            SessionToken.delete(userId);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Couldn't delete the session token saved on disk.", e);
+        }
+    }
+    
+    /**
+     * Look for a cached session token and hence authentication key. Look in memory first,
+     * and on disk if not cached in memory.
+     *
+     * @return The cached authentication key, or null if there is not a cached session token
+     * and hence not a cached authentication key.
+     * 
+     * @throws NoSuchAlgorithmException  If an error generating an MD5 hash. 
+     * @throws IOException  On any I/O error loading a session token from disk.
+     * @throws ClassNotFoundException  When loading a session token from disk.
+     */
+    private synchronized String getCachedAuthenticationKey() throws NoSuchAlgorithmException, IOException, ClassNotFoundException
+    {
+        // Is there a session token cached in memory?
+        if (sessionToken != null)
+        {
+            if (sessionToken.isExpired())
+            {
+                logger.fine("Session token cached in memory has expired.");
+                sessionToken = null;
+                authenticationKey = null;
+            }
+            else
+            {
+                logger.fine("Session token cached in memory is valid.");
+
+                    // In-memory session token is non-null and current. Whenever we cache a session token
+                // in memory, we also cache the authentication key (only in memory). So if the session
+                // token is non-null, so should the authentication key be non-null. Check it.
+                //
+                // BTW, an alternate design would have the authentication key stored in the session token.
+                // We don't do that because the authentication key includes the password. Session tokens
+                // are stored on disk, so we don't want to store the authentication key there. There are 
+                // ways of serialising objects so that some fields aren't serialised, but it did seem to
+                // point anyway to a poor solution.
+                assert authenticationKey != null : "Session token cached in memory, but no authentication key.";
+                return authenticationKey;
+            }
+        }
+        
+        // No session token cached in memory. Try out on disk.
+        SessionToken restoredSessionToken = SessionToken.load(userId);
+        if (restoredSessionToken == null)
+        {
+            logger.fine("No session token available on disk.");
+            return null;
+        }
+        else if (restoredSessionToken.getUserId().equals(userId) && !restoredSessionToken.isExpired())
+        {
+            logger.fine("Using session token loaded from disk.");
+            sessionToken = restoredSessionToken;
+            generateAuthenticationKey();
+            return authenticationKey;
+        }
+        
+        // There is not a cached session token (nor authentication key).
+        logger.fine("No cached session token.");
+        return null;
+    }
+    
+    /**
+     * Cache the given session token in memory, and the authentication key based on it.
+     * 
+     * @return The authentication key.
+     * 
+     * @throws NoSuchAlgorithmException  If an error generating an MD5 hash. 
+     */
+    private synchronized String useSessionToken(SessionToken newSessionToken) throws NoSuchAlgorithmException
+    {
+        sessionToken = newSessionToken;
+        generateAuthenticationKey();
+        return authenticationKey;
+    }
+    
+    /**
+     * Generate an authentication key from this object's session token (sessionToken field).
+     * The session token must not be null, and this method asserts if it is null.
+     * Store the authentication key to the object's authenticationKey field.
+     * 
+     * @throws NoSuchAlgorithmException  If an error generating an MD5 hash. 
+     */
+    private void generateAuthenticationKey() throws NoSuchAlgorithmException
+    {
+        assert sessionToken != null : "Generating authentication key, but no session object.";
+        
+        authenticationKey = md5(md5(password) + APP_TOKEN + sessionToken.getValue());
+        assert authenticationKey != null : "Generated authentication key, but it is null.";
+    }
+    
+    /**
+     * Return an MD5 hash of the given string.
+     * 
+     * @throws NoSuchAlgorithmException  If a MessageDigest error.
+     */
+    private static String md5(String str) throws NoSuchAlgorithmException
+    {
+        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+        messageDigest.update(str.getBytes(), 0, str.length());
+        byte[] digest = messageDigest.digest();
+
+        // Convert the digest to hex.
+        StringBuffer hash = new StringBuffer();
+        for (int i = 0; i < digest.length; i++)
+        {
+            String hex = Integer.toHexString(0xff & digest[i]);
+            if (hex.length() == 1)
+                hash.append('0');
+            hash.append(hex);
+        }   
+        
+        return hash.toString();
+    }
+    
+    /**
+     * Return the last time we downloaded contexts from Toodledo for this user.
+     */
+    private Timestamp getLastContextDownloadTimestamp()
+    {
+        return taskStore.getTimestamp(LAST_CONTEXT_DOWNLOAD);
+    }
+    
+    /**
+     * Set the time we last downloaded contexts to now.
+     */
+    private void updateLastContextDownloadTimestamp()
+    {
+        taskStore.setTimestamp(LAST_CONTEXT_DOWNLOAD, new Timestamp()); // now
+    }
+    
+    /**
+     * Return the last time we downloaded folders from Toodledo for this user.
+     */
+    private Timestamp getLastFolderDownloadTimestamp()
+    {
+        return taskStore.getTimestamp(LAST_FOLDER_DOWNLOAD);
+    }
+    
+    /**
+     * Set the time we last downloaded folders to now.
+     */
+    private void updateLastFolderDownloadTimestamp()
+    {
+        taskStore.setTimestamp(LAST_FOLDER_DOWNLOAD, new Timestamp()); // now
+    }
+    
+    /**
+     * Return the contexts for this user.
+     * Only get them from Toodledo if they haven't changed from when we last downloaded them.
+     * 
+     * @param lastEditedContextTimestamp  When Toodledo says that the contexts last changed.
+     * 
+     * @return  The contexts for this user.
+     * 
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    public ContextSet getContexts(Timestamp lastEditedContextTimestamp) 
+        throws ToodledoException, TaskServiceException
+    {
+        synchronized (contextsLock)
+        {
+            // If the contexts haven't changed since we last downloaded them, return the cached ones.
+            if (contexts != null && 
+                lastEditedContextTimestamp.getValue() < getLastContextDownloadTimestamp().getValue())
+            {
+                return contexts;
+            }
+        
+            // Ask Toodledo for the contexts for this user.
+            try
+            {
+                contexts = new ContextSet(RetryingCaller.read(this, new Callable<Context[]>()
+                {
+                    public Context[] call() throws Exception
+                    {
+                        String request = ObjectFetcher.TOODLEDO_API_URL + "contexts/get.php?key=" + getAuthenticationKey();
+                        return ObjectFetcher.request(request, Context[].class, getDeadline(), true);
+                    }
+                }));
+                logger.info("Downloaded contexts: " + contexts);            
+                taskStore.setContexts(contexts);
+                updateLastContextDownloadTimestamp();
+                return contexts;
+            }
+            catch (TaskServiceException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new TaskServiceException(e);
+            }
+        }
+    }
+    
+    /**
+     * Return the folders for this user.
+     * Only get them from Toodledo if they haven't changed from when we last downloaded them.
+     * 
+     * @param lastEditedContextTimestamp  When Toodledo says that the folders last changed.
+     * 
+     * @return  The folders for this user.
+     * 
+     * @throws ToodledoException If Toodledo responded with an error message.
+     * @throws TaskServiceException On any other error. Usually wraps a lower-level exception.
+     */
+    public ContextSet getFolders(Timestamp lastEditedFolderTimestamp) 
+        throws ToodledoException, TaskServiceException
+    {
+        synchronized (foldersLock)
+        {
+            // If the contexts haven't changed since we last downloaded them, return the cached ones.
+            if (folders != null && 
+                lastEditedFolderTimestamp.getValue() < getLastFolderDownloadTimestamp().getValue())
+            {
+                return folders;
+            }
+        
+            // Ask Toodledo for the folders for this user.
+            try
+            {
+                folders = new ContextSet(RetryingCaller.read(this, new Callable<Context[]>()
+                {
+                    public Context[] call() throws Exception
+                    {
+                        String request = ObjectFetcher.TOODLEDO_API_URL + "folders/get.php?key=" + getAuthenticationKey();
+                        return ObjectFetcher.request(request, Context[].class, getDeadline(), true);
+                    }
+                }));
+                logger.info("Downloaded folders: " + folders);            
+                taskStore.setFolders(folders);
+                updateLastFolderDownloadTimestamp();
+                return folders;
+            }
+            catch (TaskServiceException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new TaskServiceException(e);
+            }        
+        }
+    }
+}